@@ -0,0 +1,47 @@
+package com.github.anivanovic.jezik;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Runs the standard workloads on each engine; every invocation gets fresh globals. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class InterpreterBenchmark {
+
+  @Param({"fib", "loop", "closures", "strings"})
+  String workload;
+
+  @Param({"tree", "vm"})
+  String engine;
+
+  @Param({"false", "true"})
+  boolean optimize;
+
+  private Engine lox;
+  private Program program;
+
+  @Setup
+  public void setUp() {
+    lox = new Engine(Engine.Kind.valueOf(engine.toUpperCase()), VM.DEFAULT_MAX_FRAMES, optimize);
+    program = lox.compile(Workloads.named(workload), new ErrorReporter(System.err));
+  }
+
+  @Benchmark
+  public void interpret() {
+    lox.run(program, Context.standard());
+  }
+}
@@ -0,0 +1,48 @@
+package com.github.anivanovic.jezik;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+  @Param({"wide", "deep"})
+  String shape;
+
+  private String source;
+  private List<Token> tokens;
+  private final ErrorReporter errors = new ErrorReporter(System.err);
+
+  @Setup
+  public void setUp() {
+    source = shape.equals("wide") ? Workloads.wide(5000) : Workloads.deep(200);
+    tokens = new Scanner(source, errors).scanTokens();
+  }
+
+  @Benchmark
+  public List<Stmt> parse() {
+    return new Parser(tokens, errors).parse();
+  }
+
+  /** Scanning and parsing together, with the parser pulling tokens from the scanner. */
+  @Benchmark
+  public List<Stmt> scanAndParse() {
+    return new Parser(new Scanner(source)).parse();
+  }
+}
@@ -0,0 +1,43 @@
+package com.github.anivanovic.jezik;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ResolverBenchmark {
+
+  @Param({"wide", "deep"})
+  String shape;
+
+  private List<Stmt> statements;
+
+  @Setup
+  public void setUp() {
+    String source = shape.equals("wide") ? Workloads.wide(5000) : Workloads.deep(200);
+    ErrorReporter errors = new ErrorReporter(System.err);
+    statements = new Parser(new Scanner(source, errors).scanTokens(), errors).parse();
+  }
+
+  @Benchmark
+  public List<Stmt> resolve() {
+    // Resolution only overwrites the annotations on the nodes, so the tree can be reused.
+    new Resolver().resolve(statements);
+    return statements;
+  }
+}
@@ -0,0 +1,51 @@
+package com.github.anivanovic.jezik;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ScannerBenchmark {
+
+  @Param({"1000", "50000"})
+  int statements;
+
+  private String source;
+
+  @Setup
+  public void setUp() {
+    source = Workloads.wide(statements);
+  }
+
+  @Benchmark
+  public List<Token> scanTokens() {
+    return new Scanner(source).scanTokens();
+  }
+
+  /** Pulls tokens one at a time the way the parser does, without collecting them. */
+  @Benchmark
+  public void nextToken(Blackhole bh) {
+    Scanner scanner = new Scanner(source);
+    Token token;
+    do {
+      token = scanner.nextToken();
+      bh.consume(token);
+    } while (token.type != TokenType.EOF);
+  }
+}
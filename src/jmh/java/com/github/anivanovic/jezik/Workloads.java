@@ -0,0 +1,94 @@
+package com.github.anivanovic.jezik;
+
+import java.util.List;
+
+/** Lox programs shared by the benchmarks. None of them print, so runs measure execution only. */
+final class Workloads {
+
+  static final String FIB = ""
+      + "fun fib(n) {\n"
+      + "  if (n < 2) return n;\n"
+      + "  return fib(n - 1) + fib(n - 2);\n"
+      + "}\n"
+      + "var result = fib(20);\n";
+
+  static final String LOOP = ""
+      + "var sum = 0;\n"
+      + "for (var i = 0; i < 100000; i = i + 1) {\n"
+      + "  sum = sum + i * 2 - 1;\n"
+      + "}\n";
+
+  static final String CLOSURES = ""
+      + "fun makeCounter() {\n"
+      + "  var count = 0;\n"
+      + "  fun increment() {\n"
+      + "    count = count + 1;\n"
+      + "    return count;\n"
+      + "  }\n"
+      + "  return increment;\n"
+      + "}\n"
+      + "var total = 0;\n"
+      + "for (var i = 0; i < 10000; i = i + 1) {\n"
+      + "  var counter = makeCounter();\n"
+      + "  counter();\n"
+      + "  total = total + counter();\n"
+      + "}\n";
+
+  static final String STRINGS = ""
+      + "var text = \"\";\n"
+      + "for (var i = 0; i < 2000; i = i + 1) {\n"
+      + "  text = text + \"lox\";\n"
+      + "}\n";
+
+  private Workloads() {}
+
+  static String named(String name) {
+    switch (name) {
+      case "fib": return FIB;
+      case "loop": return LOOP;
+      case "closures": return CLOSURES;
+      case "strings": return STRINGS;
+    }
+    throw new IllegalArgumentException("Unknown workload " + name);
+  }
+
+  /** A long flat program of independent statements. */
+  static String wide(int statements) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < statements; i++) {
+      sb.append("var v").append(i).append(" = ").append(i).append(" * 2 + (").append(i)
+          .append(" - 1) / 3;\n");
+      sb.append("if (v").append(i).append(" > 10 and v").append(i)
+          .append(" < 100) { print \"in range\"; } else { print v").append(i).append("; }\n");
+    }
+    return sb.toString();
+  }
+
+  /** Nested functions, blocks and parenthesized expressions. */
+  static String deep(int depth) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      sb.append("fun f").append(i).append("(a) {\n{\n");
+    }
+    sb.append("print ");
+    for (int i = 0; i < depth; i++) {
+      sb.append('(');
+    }
+    sb.append('a');
+    for (int i = 0; i < depth; i++) {
+      sb.append(" + ").append(i).append(')');
+    }
+    sb.append(";\n");
+    for (int i = 0; i < depth; i++) {
+      sb.append("}\n}\n");
+    }
+    return sb.toString();
+  }
+
+  /** Scans, parses and resolves a program the way Lox.run does. */
+  static List<Stmt> frontEnd(String source) {
+    List<Stmt> statements = new Parser(new Scanner(source)).parse();
+    new Resolver().resolve(statements);
+    return statements;
+  }
+}
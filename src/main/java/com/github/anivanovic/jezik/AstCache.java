@@ -0,0 +1,500 @@
+package com.github.anivanovic.jezik;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of parsed programs keyed by the SHA-256 of their source. Only the syntax
+ * tree is stored; the resolver is cheap and runs again on every load, so the cached form
+ * does not depend on anything the resolver or the interpreter fill in.
+ *
+ * <p>Entries start with a magic number and a format version, followed by a string table and
+ * the statements. Any entry that can't be read is treated as a miss and rewritten.
+ */
+class AstCache {
+  private static final int MAGIC = 0x4C4F5841; // "LOXA"
+  private static final int VERSION = 2;
+
+  private static final byte NULL = 0;
+  // Expressions.
+  private static final byte BINARY = 1;
+  private static final byte GROUPING = 2;
+  private static final byte LITERAL = 3;
+  private static final byte UNARY = 4;
+  private static final byte LOGICAL = 5;
+  private static final byte VARIABLE = 6;
+  private static final byte ASSIGN = 7;
+  private static final byte CALL = 8;
+  // Statements.
+  private static final byte EXPRESSION = 20;
+  private static final byte PRINT = 21;
+  private static final byte VAR = 22;
+  private static final byte BLOCK = 23;
+  private static final byte IF = 24;
+  private static final byte WHILE = 25;
+  private static final byte FUNCTION = 26;
+  private static final byte RETURN = 27;
+  // Literal values.
+  private static final byte NIL_VALUE = 0;
+  private static final byte TRUE_VALUE = 1;
+  private static final byte FALSE_VALUE = 2;
+  private static final byte NUMBER_VALUE = 3;
+  private static final byte STRING_VALUE = 4;
+
+  private static final TokenType[] tokenTypes = TokenType.values();
+
+  private final Path directory;
+
+  AstCache(Path directory) {
+    this.directory = directory;
+  }
+
+  /** Hex SHA-256 of the remaining bytes of {@code source}, without consuming them. */
+  static String key(ByteBuffer source) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(source.duplicate());
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /** Returns the cached statements for {@code key}, or null on a miss. */
+  List<Stmt> load(String key) {
+    Path entry = directory.resolve(key + ".ast");
+    if (!Files.isRegularFile(entry)) return null;
+
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(entry))) {
+      return new Decoder(new DataInputStream(in)).program();
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /** Stores {@code statements} under {@code key}. Failing to write the cache is not an error. */
+  void store(String key, List<Stmt> statements) {
+    try {
+      Files.createDirectories(directory);
+      Path temp = Files.createTempFile(directory, key, ".tmp");
+      try {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+          new Encoder().program(statements, new DataOutputStream(out));
+        }
+        Path entry = directory.resolve(key + ".ast");
+        // Concurrent runs of the same script race to publish identical entries.
+        try {
+          Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      // The next run simply parses again.
+    }
+  }
+
+  /**
+   * Writes the tree into a buffer while collecting the string table, which is emitted ahead
+   * of the tree so the decoder can resolve indexes as it goes.
+   */
+  private static class Encoder implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final List<String> table = new ArrayList<>();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    void program(List<Stmt> statements, DataOutputStream target) throws IOException {
+      statements(statements);
+
+      target.writeInt(MAGIC);
+      target.writeInt(VERSION);
+      target.writeInt(table.size());
+      for (String string : table) {
+        // Not writeUTF, which caps strings at 64K.
+        byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+        target.writeInt(utf8.length);
+        target.write(utf8);
+      }
+      out.writeTo(target);
+      target.flush();
+    }
+
+    private void statements(List<Stmt> statements) {
+      varint(statements.size());
+      for (Stmt statement : statements) {
+        stmt(statement);
+      }
+    }
+
+    private void stmt(Stmt stmt) {
+      if (stmt == null) {
+        tag(NULL);
+      } else {
+        stmt.accept(this);
+        varint(stmt.line);
+      }
+    }
+
+    private void expr(Expr expr) {
+      if (expr == null) {
+        tag(NULL);
+      } else {
+        expr.accept(this);
+      }
+    }
+
+    private void token(Token token) {
+      tag((byte) token.type.ordinal());
+      string(token.lexem);
+      value(token.literal);
+      varint(token.line);
+    }
+
+    private void value(Object value) {
+      if (value == null) {
+        tag(NIL_VALUE);
+      } else if (value instanceof Boolean) {
+        tag((Boolean) value ? TRUE_VALUE : FALSE_VALUE);
+      } else if (value instanceof Double) {
+        tag(NUMBER_VALUE);
+        long bits = Double.doubleToRawLongBits((Double) value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+          out.write((int) (bits >>> shift));
+        }
+      } else {
+        tag(STRING_VALUE);
+        string((String) value);
+      }
+    }
+
+    private void string(String string) {
+      Integer index = strings.get(string);
+      if (index == null) {
+        index = table.size();
+        strings.put(string, index);
+        table.add(string);
+      }
+      varint(index);
+    }
+
+    private void tag(byte tag) {
+      out.write(tag);
+    }
+
+    // Unsigned LEB128; lines, counts and string indexes usually fit in one byte.
+    private void varint(int value) {
+      while ((value & ~0x7f) != 0) {
+        out.write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      tag(BINARY);
+      expr(expr.left);
+      token(expr.operator);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      tag(GROUPING);
+      expr(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      tag(LITERAL);
+      value(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      tag(UNARY);
+      token(expr.operator);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      tag(LOGICAL);
+      expr(expr.left);
+      token(expr.operator);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      tag(VARIABLE);
+      token(expr.name);
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      tag(ASSIGN);
+      token(expr.name);
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      tag(CALL);
+      expr(expr.callee);
+      token(expr.paren);
+      varint(expr.args.size());
+      for (Expr arg : expr.args) {
+        expr(arg);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      tag(EXPRESSION);
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      tag(PRINT);
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      tag(VAR);
+      token(stmt.name);
+      expr(stmt.initializer);
+      return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      tag(BLOCK);
+      statements(stmt.statements);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      tag(IF);
+      expr(stmt.condition);
+      stmt(stmt.thenBranch);
+      stmt(stmt.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      tag(WHILE);
+      expr(stmt.condition);
+      stmt(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      tag(FUNCTION);
+      token(stmt.name);
+      varint(stmt.variables.size());
+      for (Token parameter : stmt.variables) {
+        token(parameter);
+      }
+      statements(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      tag(RETURN);
+      token(stmt.token);
+      expr(stmt.value);
+      return null;
+    }
+  }
+
+  private static class Decoder {
+    private final DataInputStream in;
+    private String[] table;
+
+    Decoder(DataInputStream in) {
+      this.in = in;
+    }
+
+    List<Stmt> program() throws IOException {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+
+      table = new String[in.readInt()];
+      for (int i = 0; i < table.length; i++) {
+        byte[] utf8 = new byte[in.readInt()];
+        in.readFully(utf8);
+        table[i] = new String(utf8, StandardCharsets.UTF_8);
+      }
+      return statements();
+    }
+
+    private List<Stmt> statements() throws IOException {
+      int count = readVarint();
+      List<Stmt> statements = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        statements.add(stmt());
+      }
+      return statements;
+    }
+
+    private Stmt stmt() throws IOException {
+      byte tag = in.readByte();
+      if (tag == NULL) return null;
+      Stmt stmt = stmt(tag);
+      stmt.line = readVarint();
+      return stmt;
+    }
+
+    private Stmt stmt(byte tag) throws IOException {
+      switch (tag) {
+        case EXPRESSION:
+          return new Stmt.Expression(expr());
+        case PRINT:
+          return new Stmt.Print(expr());
+        case VAR: {
+          Token name = token();
+          return new Stmt.Var(name, expr());
+        }
+        case BLOCK:
+          return new Stmt.Block(statements());
+        case IF: {
+          Expr condition = expr();
+          Stmt thenBranch = stmt();
+          return new Stmt.If(condition, thenBranch, stmt());
+        }
+        case WHILE: {
+          Expr condition = expr();
+          return new Stmt.While(condition, stmt());
+        }
+        case FUNCTION: {
+          Token name = token();
+          int count = readVarint();
+          List<Token> parameters = new ArrayList<>(count);
+          for (int i = 0; i < count; i++) {
+            parameters.add(token());
+          }
+          return new Stmt.Function(name, parameters, statements());
+        }
+        case RETURN: {
+          Token token = token();
+          return new Stmt.Return(token, expr());
+        }
+      }
+      throw new IOException("Unknown statement tag " + tag);
+    }
+
+    private Expr expr() throws IOException {
+      byte tag = in.readByte();
+      switch (tag) {
+        case NULL:
+          return null;
+        case BINARY: {
+          Expr left = expr();
+          Token operator = token();
+          return new Expr.Binary(left, operator, expr());
+        }
+        case GROUPING:
+          return new Expr.Grouping(expr());
+        case LITERAL:
+          return new Expr.Literal(value());
+        case UNARY: {
+          Token operator = token();
+          return new Expr.Unary(operator, expr());
+        }
+        case LOGICAL: {
+          Expr left = expr();
+          Token operator = token();
+          return new Expr.Logical(left, operator, expr());
+        }
+        case VARIABLE:
+          return new Expr.Variable(token());
+        case ASSIGN: {
+          Token name = token();
+          return new Expr.Assign(name, expr());
+        }
+        case CALL: {
+          Expr callee = expr();
+          Token paren = token();
+          int count = readVarint();
+          List<Expr> args = new ArrayList<>(count);
+          for (int i = 0; i < count; i++) {
+            args.add(expr());
+          }
+          return new Expr.Call(callee, paren, args);
+        }
+      }
+      throw new IOException("Unknown expression tag " + tag);
+    }
+
+    private Token token() throws IOException {
+      TokenType type = tokenTypes[in.readByte()];
+      String lexem = table[readVarint()];
+      Object literal = value();
+      return new Token(type, lexem, literal, readVarint());
+    }
+
+    private Object value() throws IOException {
+      byte tag = in.readByte();
+      switch (tag) {
+        case NIL_VALUE: return null;
+        case TRUE_VALUE: return true;
+        case FALSE_VALUE: return false;
+        case NUMBER_VALUE: return in.readDouble();
+        case STRING_VALUE: return table[readVarint()];
+      }
+      throw new IOException("Unknown value tag " + tag);
+    }
+
+    private int readVarint() throws IOException {
+      int value = 0;
+      int shift = 0;
+      int b;
+      do {
+        b = in.readUnsignedByte();
+        value |= (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+  }
+}
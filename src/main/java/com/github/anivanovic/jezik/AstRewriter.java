@@ -0,0 +1,129 @@
+package com.github.anivanovic.jezik;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base for optimizer passes. Every visit returns a freshly built copy of the node with its
+ * children rewritten, so a pass only overrides the nodes it changes. A statement visit may
+ * return null to drop the statement from its enclosing list.
+ */
+abstract class AstRewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt>, Optimizer.Pass {
+
+  @Override
+  public List<Stmt> apply(List<Stmt> statements) {
+    return rewrite(statements);
+  }
+
+  Expr rewrite(Expr expr) {
+    return expr == null ? null : expr.accept(this);
+  }
+
+  Stmt rewrite(Stmt stmt) {
+    if (stmt == null) return null;
+    Stmt rewritten = stmt.accept(this);
+    // A statement built in place of another starts on its line.
+    if (rewritten != null && rewritten.line == 0) rewritten.line = stmt.line;
+    return rewritten;
+  }
+
+  List<Stmt> rewrite(List<Stmt> statements) {
+    List<Stmt> result = new ArrayList<>(statements.size());
+    for (Stmt statement : statements) {
+      Stmt rewritten = rewrite(statement);
+      if (rewritten != null) result.add(rewritten);
+    }
+    return result;
+  }
+
+  /** Rewrites a statement that must stay a statement, e.g. a loop body. */
+  Stmt rewriteBranch(Stmt stmt) {
+    Stmt rewritten = rewrite(stmt);
+    return rewritten == null ? new Stmt.Block(List.of()) : rewritten;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    return new Expr.Binary(rewrite(expr.left), expr.operator, rewrite(expr.right));
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    return new Expr.Grouping(rewrite(expr.expression));
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return new Expr.Literal(expr.value);
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    return new Expr.Unary(expr.operator, rewrite(expr.right));
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    return new Expr.Logical(rewrite(expr.left), expr.operator, rewrite(expr.right));
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return new Expr.Variable(expr.name);
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    return new Expr.Assign(expr.name, rewrite(expr.value));
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = rewrite(expr.callee);
+    List<Expr> args = new ArrayList<>(expr.args.size());
+    for (Expr arg : expr.args) {
+      args.add(rewrite(arg));
+    }
+    return new Expr.Call(callee, expr.paren, args);
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    return new Stmt.Expression(rewrite(stmt.expression));
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    return new Stmt.Print(rewrite(stmt.expression));
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    return new Stmt.Var(stmt.name, rewrite(stmt.initializer));
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    return new Stmt.Block(rewrite(stmt.statements));
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    return new Stmt.If(rewrite(stmt.condition), rewriteBranch(stmt.thenBranch), rewrite(stmt.elseBranch));
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    return new Stmt.While(rewrite(stmt.condition), rewriteBranch(stmt.body));
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    return new Stmt.Function(stmt.name, stmt.variables, rewrite(stmt.body));
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    return new Stmt.Return(stmt.token, rewrite(stmt.value));
+  }
+}
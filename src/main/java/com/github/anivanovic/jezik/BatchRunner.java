@@ -0,0 +1,246 @@
+package com.github.anivanovic.jezik;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many scripts at once, each on a thread of its own: a virtual thread where the JDK has
+ * them, so scripts blocked in {@code sleep} or {@code readFile} hold no carrier thread, and a
+ * platform thread from a fixed pool before that. At most {@code jobs} scripts run at a time.
+ *
+ * <p>Scripts with the same source share one compiled {@link Program}. Each run has its own
+ * {@link Context}, whose output is buffered and written out in the order the scripts were
+ * given. A run that outlives the timeout is interrupted.
+ */
+class BatchRunner {
+
+  /** What became of one script. */
+  static class Result {
+    final Path path;
+    final String out;
+    final String err;
+    final boolean hadError;
+    final boolean hadRuntimeError;
+    final boolean timedOut;
+    final long nanos;
+
+    Result(Path path, String out, String err, boolean hadError, boolean hadRuntimeError,
+        boolean timedOut, long nanos) {
+      this.path = path;
+      this.out = out;
+      this.err = err;
+      this.hadError = hadError;
+      this.hadRuntimeError = hadRuntimeError;
+      this.timedOut = timedOut;
+      this.nanos = nanos;
+    }
+  }
+
+  /** A source's program, or the errors that kept it from compiling. */
+  private static class Compiled {
+    final Program program;
+    final String errors;
+
+    Compiled(Program program, String errors) {
+      this.program = program;
+      this.errors = errors;
+    }
+  }
+
+  private final Engine engine;
+  private final int jobs;
+  private final long timeoutMillis;
+  private final long stackSize;
+  private final ConcurrentHashMap<String, CompletableFuture<Compiled>> programs =
+      new ConcurrentHashMap<>();
+
+  BatchRunner(Engine engine, int jobs, long timeoutMillis, long stackSize) {
+    this.engine = engine;
+    this.jobs = jobs;
+    this.timeoutMillis = timeoutMillis;
+    this.stackSize = stackSize;
+  }
+
+  List<Result> run(List<Path> paths) throws InterruptedException {
+    Semaphore permits = new Semaphore(jobs);
+    ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, "jlox-timeout");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // Most scripts finish long before their timeout; their cancelled alarms must not pile up.
+    timer.setRemoveOnCancelPolicy(true);
+    ExecutorService executor = newExecutor();
+    try {
+      List<Future<Result>> futures = new ArrayList<>();
+      for (Path path : paths) {
+        permits.acquire();
+        futures.add(executor.submit(() -> {
+          try {
+            return runScript(path, timer);
+          } finally {
+            permits.release();
+          }
+        }));
+      }
+
+      List<Result> results = new ArrayList<>();
+      for (Future<Result> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+          throw (Error) cause;
+        }
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+      timer.shutdownNow();
+    }
+  }
+
+  /**
+   * A thread per task on JDK 21 and later. Earlier JDKs get a pool as large as the bound on
+   * concurrency, with threads whose stacks fit the tree engines' call depth.
+   */
+  private ExecutorService newExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      // Missing before JDK 19 and a preview feature that refuses to run until JDK 21.
+      AtomicInteger count = new AtomicInteger();
+      return Executors.newFixedThreadPool(jobs, r ->
+          new Thread(null, r, "jlox-batch-" + count.incrementAndGet(), stackSize));
+    }
+  }
+
+  private Result runScript(Path path, ScheduledExecutorService timer) {
+    long start = System.nanoTime();
+    LoxEvents.ScriptRun event = new LoxEvents.ScriptRun();
+    event.begin();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    PrintStream errStream = new PrintStream(err, true, StandardCharsets.UTF_8);
+    ErrorReporter errors = new ErrorReporter(errStream);
+    boolean hadError = false;
+    boolean timedOut = false;
+
+    Watchdog watchdog = new Watchdog(Thread.currentThread());
+    if (timeoutMillis > 0) watchdog.arm(timer, timeoutMillis);
+    try {
+      Compiled compiled = compile(Files.readString(path));
+      if (compiled.program == null) {
+        errStream.print(compiled.errors);
+        hadError = true;
+      } else {
+        PrintStream outStream = new PrintStream(out, true, StandardCharsets.UTF_8);
+        engine.run(compiled.program, new Context(outStream, errors));
+      }
+    } catch (IOException e) {
+      errStream.println("Could not read " + path + ": " + e.getMessage());
+      hadError = true;
+    } catch (LoxInterruptedException e) {
+      timedOut = true;
+    } finally {
+      watchdog.disarm();
+      event.script = path.toString();
+      event.engine = engine.kind().name().toLowerCase();
+      event.commit();
+    }
+
+    return new Result(path, out.toString(StandardCharsets.UTF_8),
+        err.toString(StandardCharsets.UTF_8), hadError, errors.hadRuntimeError(), timedOut,
+        System.nanoTime() - start);
+  }
+
+  /** Compiles each distinct source once; runs of the same source wait for that compilation. */
+  private Compiled compile(String source) {
+    CompletableFuture<Compiled> compiled = new CompletableFuture<>();
+    CompletableFuture<Compiled> existing = programs.putIfAbsent(source, compiled);
+    if (existing != null) return existing.join();
+
+    ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+    ErrorReporter errors =
+        new ErrorReporter(new PrintStream(diagnostics, true, StandardCharsets.UTF_8));
+    try {
+      compiled.complete(new Compiled(engine.compile(source, errors),
+          diagnostics.toString(StandardCharsets.UTF_8)));
+    } catch (RuntimeException | Error e) {
+      compiled.completeExceptionally(e);
+    }
+    return compiled.join();
+  }
+
+  /**
+   * Interrupts a script's thread once its time is up, unless the script finished first. The
+   * lock keeps a late interrupt from landing on the next script a pooled thread runs.
+   */
+  private static class Watchdog implements Runnable {
+    private final Thread thread;
+    private boolean done = false;
+    private Future<?> alarm = null;
+
+    Watchdog(Thread thread) {
+      this.thread = thread;
+    }
+
+    synchronized void arm(ScheduledExecutorService timer, long timeoutMillis) {
+      alarm = timer.schedule(this, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void run() {
+      if (!done) thread.interrupt();
+    }
+
+    synchronized void disarm() {
+      done = true;
+      if (alarm != null) alarm.cancel(false);
+      // An interrupt that arrived after the script's last check must not outlive it.
+      Thread.interrupted();
+    }
+  }
+
+  /** Latency percentiles of the runs, for the summary printed after a batch. */
+  static String summary(List<Result> results, long wallNanos) {
+    long[] nanos = new long[results.size()];
+    for (int i = 0; i < nanos.length; i++) {
+      nanos[i] = results.get(i).nanos;
+    }
+    Arrays.sort(nanos);
+    return String.format(
+        "%d scripts in %.1f ms; latency p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+        nanos.length, wallNanos / 1e6, percentile(nanos, 50) / 1e6, percentile(nanos, 90) / 1e6,
+        percentile(nanos, 99) / 1e6, nanos.length == 0 ? 0 : nanos[nanos.length - 1] / 1e6);
+  }
+
+  /** Nearest-rank percentile of sorted values. */
+  private static long percentile(long[] sorted, int percent) {
+    if (sorted.length == 0) return 0;
+    int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+    return sorted[Math.max(0, rank - 1)];
+  }
+}
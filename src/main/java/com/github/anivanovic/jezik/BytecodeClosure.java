@@ -0,0 +1,22 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * Runtime function value of the {@link VM}: a compiled function plus its captured upvalues and
+ * the globals of the program that made it.
+ */
+class BytecodeClosure {
+  final BytecodeFunction function;
+  final Upvalue[] upvalues;
+  final LinkedGlobals globals;
+
+  BytecodeClosure(BytecodeFunction function, LinkedGlobals globals) {
+    this.function = function;
+    this.globals = globals;
+    this.upvalues = new Upvalue[function.upvalueCount];
+  }
+
+  @Override
+  public String toString() {
+    return function.toString();
+  }
+}
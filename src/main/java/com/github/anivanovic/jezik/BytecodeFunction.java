@@ -0,0 +1,21 @@
+package com.github.anivanovic.jezik;
+
+/** Compiled form of a function body, shared by every closure created from it. */
+class BytecodeFunction {
+  final String name;
+  final int arity;
+  final Chunk chunk = new Chunk();
+  int upvalueCount = 0;
+  // Most stack slots a call needs, counting the closure itself and the arguments.
+  int maxStack = 0;
+
+  BytecodeFunction(String name, int arity) {
+    this.name = name;
+    this.arity = arity;
+  }
+
+  @Override
+  public String toString() {
+    return name == null ? "<script>" : "<fn " + name + ">";
+  }
+}
@@ -0,0 +1,18 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * Where a function finds one of its free variables when the closure is created: either a
+ * boxed local of the enclosing function, {@code depth} environments up from the declaration,
+ * or one of the enclosing function's own captured cells.
+ */
+final class Capture {
+  final boolean local;
+  final int depth;
+  final int index;
+
+  Capture(boolean local, int depth, int index) {
+    this.local = local;
+    this.depth = depth;
+    this.index = index;
+  }
+}
@@ -0,0 +1,13 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * Box holding a local variable that some closure captures. The declaring frame and every
+ * closure share the cell, so assignments on either side are seen by the other.
+ */
+final class Cell {
+  Object value;
+
+  Cell(Object value) {
+    this.value = value;
+  }
+}
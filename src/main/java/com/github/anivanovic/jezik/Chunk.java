@@ -0,0 +1,47 @@
+package com.github.anivanovic.jezik;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sequence of bytecode together with its constant table and the source line of every
+ * byte, used for runtime error reporting.
+ */
+class Chunk {
+  byte[] code = new byte[64];
+  int[] lines = new int[64];
+  int count = 0;
+  private final List<Object> constantList = new ArrayList<>();
+  private final Map<Object, Integer> constantIndex = new HashMap<>();
+  Object[] constants;
+
+  void write(byte b, int line) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      lines = Arrays.copyOf(lines, count * 2);
+    }
+    code[count] = b;
+    lines[count] = line;
+    count++;
+  }
+
+  int addConstant(Object value) {
+    if (value instanceof Double || value instanceof String) {
+      Integer index = constantIndex.get(value);
+      if (index != null) return index;
+      constantIndex.put(value, constantList.size());
+    }
+    constantList.add(value);
+    return constantList.size() - 1;
+  }
+
+  /** Trims the code arrays and freezes the constant table once compilation is done. */
+  void seal() {
+    code = Arrays.copyOf(code, count);
+    lines = Arrays.copyOf(lines, count);
+    constants = constantList.toArray();
+  }
+}
@@ -0,0 +1,381 @@
+package com.github.anivanovic.jezik;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes just enough of the class file format for {@link JvmCompiler}: a constant pool, fields
+ * and methods with a code attribute. Classes are emitted as version 49 so they are checked by
+ * the type inferring verifier and need no stack map frames.
+ */
+class ClassWriter {
+
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_PRIVATE = 0x0002;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  private static final int VERSION = 49;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> entries = new HashMap<>();
+  private int poolCount = 1;
+
+  private final String name;
+  private final int thisClass;
+  private final int superClass;
+  private final int[] interfaces;
+  private final List<byte[]> fields = new ArrayList<>();
+  private final List<MethodWriter> methods = new ArrayList<>();
+
+  ClassWriter(String name, String superName, String... interfaceNames) {
+    this.name = name;
+    thisClass = classRef(name);
+    superClass = classRef(superName);
+    interfaces = new int[interfaceNames.length];
+    for (int i = 0; i < interfaceNames.length; i++) {
+      interfaces[i] = classRef(interfaceNames[i]);
+    }
+  }
+
+  String thisName() {
+    return name;
+  }
+
+  int utf8(String value) {
+    return entry("U" + value, 1, 1, out -> out.writeUTF(value));
+  }
+
+  int classRef(String name) {
+    int utf8 = utf8(name);
+    return entry("C" + name, 7, 1, out -> out.writeShort(utf8));
+  }
+
+  int string(String value) {
+    int utf8 = utf8(value);
+    return entry("S" + value, 8, 1, out -> out.writeShort(utf8));
+  }
+
+  int doubleConst(double value) {
+    // Keyed by bits so that -0.0 and NaN get entries of their own.
+    return entry("D" + Double.doubleToRawLongBits(value), 6, 2, out -> out.writeDouble(value));
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(9, owner, name, descriptor);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return memberRef(10, owner, name, descriptor);
+  }
+
+  int interfaceMethodRef(String owner, String name, String descriptor) {
+    return memberRef(11, owner, name, descriptor);
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    int ownerIndex = classRef(owner);
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    int nameAndType = entry("N" + name + ":" + descriptor, 12, 1, out -> {
+      out.writeShort(nameIndex);
+      out.writeShort(descriptorIndex);
+    });
+    return entry(tag + owner + "." + name + ":" + descriptor, tag, 1, out -> {
+      out.writeShort(ownerIndex);
+      out.writeShort(nameAndType);
+    });
+  }
+
+  private interface EntryWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private int entry(String key, int tag, int size, EntryWriter writer) {
+    Integer index = entries.get(key);
+    if (index != null) return index;
+
+    if (poolCount + size > 0xffff) {
+      throw new JvmCompiler.Unsupported("constant pool overflow");
+    }
+    try {
+      poolOut.writeByte(tag);
+      writer.write(poolOut);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    index = poolCount;
+    poolCount += size;
+    entries.put(key, index);
+    return index;
+  }
+
+  void field(int access, String name, String descriptor) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    fields.add(bytes.toByteArray());
+  }
+
+  /** Starts a method; {@code locals} counts the slots its parameters take, including this. */
+  MethodWriter method(int access, String name, String descriptor, int locals) {
+    MethodWriter method = new MethodWriter(this, access, utf8(name), utf8(descriptor), locals);
+    methods.add(method);
+    return method;
+  }
+
+  byte[] toByteArray() {
+    int code = utf8("Code");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xcafebabe);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      pool.writeTo(out);
+
+      out.writeShort(ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(interfaces.length);
+      for (int index : interfaces) {
+        out.writeShort(index);
+      }
+
+      out.writeShort(fields.size());
+      for (byte[] field : fields) {
+        out.write(field);
+      }
+
+      out.writeShort(methods.size());
+      for (MethodWriter method : methods) {
+        method.writeTo(out, code);
+      }
+      out.writeShort(0);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** A branch target. Remembers the stack depth it is reached with. */
+  static class Label {
+    private int position = -1;
+    private int stack = -1;
+    private final List<Integer> fixups = new ArrayList<>();
+  }
+
+  /**
+   * Bytecode of one method. Every instruction is given its stack effect so the writer can
+   * compute max_stack; code is structured, so depth at a label is the depth of its jumps.
+   */
+  static class MethodWriter {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int AALOAD = 0x32;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int SWAP = 0x5f;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEW = 0xbb;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+
+    private final ClassWriter owner;
+    private final int access;
+    private final int name;
+    private final int descriptor;
+    private byte[] code = new byte[64];
+    private int length = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+
+    private MethodWriter(ClassWriter owner, int access, int name, int descriptor, int locals) {
+      this.owner = owner;
+      this.access = access;
+      this.name = name;
+      this.descriptor = descriptor;
+      this.maxLocals = locals;
+    }
+
+    /** Reserves {@code size} local slots and returns the first. */
+    int newLocal(int size) {
+      int local = maxLocals;
+      maxLocals += size;
+      // Keeps loads and stores to the short operand form.
+      if (maxLocals > 0xff) throw new JvmCompiler.Unsupported("too many locals");
+      return local;
+    }
+
+    void insn(int opcode, int effect) {
+      u1(opcode);
+      adjust(effect);
+    }
+
+    void local(int opcode, int local, int effect) {
+      u1(opcode);
+      u1(local);
+      adjust(effect);
+    }
+
+    void push(int value) {
+      if (value >= -128 && value <= 127) {
+        u1(BIPUSH);
+        u1(value);
+      } else {
+        u1(SIPUSH);
+        u2(value);
+      }
+      adjust(1);
+    }
+
+    void ldc(int index, int effect) {
+      u1(effect == 2 ? LDC2_W : LDC_W);
+      u2(index);
+      adjust(effect);
+    }
+
+    /** Field, method and type instructions, which all take a constant pool index. */
+    void ref(int opcode, int index, int effect) {
+      u1(opcode);
+      u2(index);
+      adjust(effect);
+    }
+
+    void invokeInterface(int index, int argSlots, int effect) {
+      u1(INVOKEINTERFACE);
+      u2(index);
+      u1(argSlots + 1);
+      u1(0);
+      adjust(effect);
+    }
+
+    void jump(int opcode, Label target) {
+      int at = length;
+      u1(opcode);
+      u2(0);
+      adjust(opcode == GOTO ? 0 : -1);
+      if (target.position >= 0) {
+        patch(at, target.position);
+      } else {
+        target.fixups.add(at);
+      }
+      target.stack = stack;
+    }
+
+    void mark(Label label) {
+      label.position = length;
+      if (label.stack >= 0) stack = label.stack;
+      for (int at : label.fixups) {
+        patch(at, length);
+      }
+      label.fixups.clear();
+      label.stack = stack;
+    }
+
+    /** Marks the code after a goto or return as reachable only through a label. */
+    void unreachable() {
+      stack = 0;
+    }
+
+    ClassWriter owner() {
+      return owner;
+    }
+
+    private void patch(int at, int target) {
+      int offset = target - at;
+      if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+        throw new JvmCompiler.Unsupported("method too large");
+      }
+      code[at + 1] = (byte) (offset >> 8);
+      code[at + 2] = (byte) offset;
+    }
+
+    private void adjust(int effect) {
+      stack += effect;
+      if (stack > maxStack) maxStack = stack;
+    }
+
+    private void u1(int value) {
+      if (length == code.length) {
+        code = Arrays.copyOf(code, length * 2);
+      }
+      code[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+
+    private void writeTo(DataOutputStream out, int codeName) throws IOException {
+      if (length > 0xffff) throw new JvmCompiler.Unsupported("method too large");
+
+      out.writeShort(access);
+      out.writeShort(name);
+      out.writeShort(descriptor);
+      out.writeShort(1);
+      out.writeShort(codeName);
+      out.writeInt(12 + length);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(length);
+      out.write(code, 0, length);
+      out.writeShort(0);
+      out.writeShort(0);
+    }
+  }
+}
@@ -0,0 +1,469 @@
+package com.github.anivanovic.jezik;
+
+import java.util.List;
+
+/**
+ * Engine that converts every resolved node once into an {@link Evaluator} or {@link Executor}
+ * lambda specialized for it: its operator, whether its operands are proven numbers and where
+ * its variable lives are decided here instead of on every evaluation. Running the program is
+ * then a chain of monomorphic calls the JIT can inline, without the double dispatch of the
+ * visitors.
+ *
+ * <p>The conversion happens once, when the program is compiled. The lambdas keep nothing of a
+ * run: they are handed the {@link ClosureRun} they execute in, with its globals, output, depth
+ * and profiler.
+ *
+ * <p>Operators fail with the same errors as the {@link Interpreter}, through the helpers in
+ * {@link JvmRuntime}.
+ */
+class ClosureCompiler implements Expr.Visitor<Evaluator>, Stmt.Visitor<Executor> {
+
+  /** Converts a resolved program once; the result can be run any number of times. */
+  Executor[] compile(List<Stmt> statements) {
+    Executor[] executors = new Executor[statements.size()];
+    for (int i = 0; i < executors.length; i++) {
+      executors[i] = statements.get(i).accept(this);
+    }
+    return executors;
+  }
+
+  private Evaluator compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  private Evaluator[] compileArgs(List<Expr> args) {
+    Evaluator[] evaluators = new Evaluator[args.size()];
+    for (int i = 0; i < evaluators.length; i++) {
+      evaluators[i] = compile(args.get(i));
+    }
+    return evaluators;
+  }
+
+  private static Object[] evaluateArgs(Evaluator[] args, ClosureRun run, Environment env) {
+    Object[] values = new Object[args.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = args[i].eval(run, env);
+    }
+    return values;
+  }
+
+  /** Compiles an expression the resolver proved numeric. */
+  private Evaluator.Numeric number(Expr expr) {
+    if (expr instanceof Expr.Literal) {
+      double value = (double) ((Expr.Literal) expr).value;
+      return (run, env) -> value;
+    }
+    if (expr instanceof Expr.Grouping) return number(((Expr.Grouping) expr).expression);
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      if (unary.numericRight) {
+        Evaluator.Numeric right = number(unary.right);
+        return (run, env) -> -right.eval(run, env);
+      }
+      Evaluator right = compile(unary.right);
+      Token operator = unary.operator;
+      return (run, env) -> JvmRuntime.negate(right.eval(run, env), operator);
+    }
+
+    Expr.Binary binary = (Expr.Binary) expr;
+    if (binary.numericLeft && binary.numericRight) {
+      Evaluator.Numeric left = number(binary.left);
+      Evaluator.Numeric right = number(binary.right);
+      switch (binary.operator.type) {
+        case PLUS: return (run, env) -> left.eval(run, env) + right.eval(run, env);
+        case MINUS: return (run, env) -> left.eval(run, env) - right.eval(run, env);
+        case STAR: return (run, env) -> left.eval(run, env) * right.eval(run, env);
+        default: return (run, env) -> left.eval(run, env) / right.eval(run, env);
+      }
+    }
+
+    Evaluator left = compile(binary.left);
+    Evaluator right = compile(binary.right);
+    Token operator = binary.operator;
+    switch (operator.type) {
+      case MINUS:
+        return (run, env) ->
+            JvmRuntime.subtract(left.eval(run, env), right.eval(run, env), operator);
+      case STAR:
+        return (run, env) ->
+            JvmRuntime.multiply(left.eval(run, env), right.eval(run, env), operator);
+      default:
+        return (run, env) ->
+            JvmRuntime.divide(left.eval(run, env), right.eval(run, env), operator);
+    }
+  }
+
+  @Override
+  public Evaluator visitBinaryExpr(Expr.Binary expr) {
+    Token operator = expr.operator;
+    switch (operator.type) {
+      case MINUS:
+      case STAR:
+      case SLASH: {
+        Evaluator.Numeric number = number(expr);
+        return (run, env) -> number.eval(run, env);
+      }
+      case PLUS:
+        if (expr.numericLeft && expr.numericRight) {
+          Evaluator.Numeric number = number(expr);
+          return (run, env) -> number.eval(run, env);
+        }
+        break;
+      default:
+        if (expr.numericLeft && expr.numericRight) return compare(expr);
+        break;
+    }
+
+    Evaluator left = compile(expr.left);
+    Evaluator right = compile(expr.right);
+    switch (operator.type) {
+      case PLUS:
+        return (run, env) -> JvmRuntime.add(left.eval(run, env), right.eval(run, env), operator);
+      case GREATER:
+        return (run, env) ->
+            JvmRuntime.greater(left.eval(run, env), right.eval(run, env), operator);
+      case GREATER_EQUAL:
+        return (run, env) ->
+            JvmRuntime.greaterEqual(left.eval(run, env), right.eval(run, env), operator);
+      case LESS:
+        return (run, env) -> JvmRuntime.less(left.eval(run, env), right.eval(run, env), operator);
+      case LESS_EQUAL:
+        return (run, env) ->
+            JvmRuntime.lessEqual(left.eval(run, env), right.eval(run, env), operator);
+      case EQUAL_EQUAL:
+        return (run, env) ->
+            JvmRuntime.equal(left.eval(run, env), right.eval(run, env), operator);
+      default:
+        return (run, env) ->
+            !JvmRuntime.equal(left.eval(run, env), right.eval(run, env), operator);
+    }
+  }
+
+  /** A comparison of two operands proven numeric. */
+  private Evaluator compare(Expr.Binary expr) {
+    Evaluator.Numeric left = number(expr.left);
+    Evaluator.Numeric right = number(expr.right);
+    switch (expr.operator.type) {
+      case GREATER: return (run, env) -> left.eval(run, env) > right.eval(run, env);
+      case GREATER_EQUAL: return (run, env) -> left.eval(run, env) >= right.eval(run, env);
+      case LESS: return (run, env) -> left.eval(run, env) < right.eval(run, env);
+      case LESS_EQUAL: return (run, env) -> left.eval(run, env) <= right.eval(run, env);
+      case EQUAL_EQUAL:
+        return (run, env) -> Double.compare(left.eval(run, env), right.eval(run, env)) == 0;
+      default:
+        return (run, env) -> Double.compare(left.eval(run, env), right.eval(run, env)) != 0;
+    }
+  }
+
+  @Override
+  public Evaluator visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public Evaluator visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+    return (run, env) -> value;
+  }
+
+  @Override
+  public Evaluator visitUnaryExpr(Expr.Unary expr) {
+    if (expr.operator.type == TokenType.MINUS) {
+      Evaluator.Numeric number = number(expr);
+      return (run, env) -> number.eval(run, env);
+    }
+
+    Evaluator right = compile(expr.right);
+    return (run, env) -> !Interpreter.isTruthy(right.eval(run, env));
+  }
+
+  @Override
+  public Evaluator visitLogicalExpr(Expr.Logical expr) {
+    Evaluator left = compile(expr.left);
+    Evaluator right = compile(expr.right);
+    if (expr.operator.type == TokenType.OR) {
+      return (run, env) -> {
+        Object value = left.eval(run, env);
+        return Interpreter.isTruthy(value) ? value : right.eval(run, env);
+      };
+    }
+    return (run, env) -> {
+      Object value = left.eval(run, env);
+      return Interpreter.isTruthy(value) ? right.eval(run, env) : value;
+    };
+  }
+
+  @Override
+  public Evaluator visitVariableExpr(Expr.Variable expr) {
+    int slot = expr.slot;
+    int depth = expr.depth;
+    if (expr.upvalue != -1) {
+      int upvalue = expr.upvalue;
+      return (run, env) -> run.upvalues[upvalue].value;
+    }
+    if (expr.depth == -1) {
+      Token name = expr.name;
+      int global = expr.global;
+      return (run, env) -> run.globals.get(name, global);
+    }
+    if (expr.boxed) {
+      return (run, env) -> ((Cell) env.getAt(depth, slot)).value;
+    }
+    switch (depth) {
+      case 0: return (run, env) -> env.slots[slot];
+      case 1: return (run, env) -> env.enclosing.slots[slot];
+      default: return (run, env) -> env.getAt(depth, slot);
+    }
+  }
+
+  @Override
+  public Evaluator visitAssignExpr(Expr.Assign expr) {
+    Evaluator value = compile(expr.value);
+    int slot = expr.slot;
+    int depth = expr.depth;
+    if (expr.upvalue != -1) {
+      int upvalue = expr.upvalue;
+      return (run, env) -> run.upvalues[upvalue].value = value.eval(run, env);
+    }
+    if (expr.depth == -1) {
+      Token name = expr.name;
+      int global = expr.global;
+      return (run, env) -> {
+        Object val = value.eval(run, env);
+        run.globals.assign(name, global, val);
+        return val;
+      };
+    }
+    if (expr.boxed) {
+      return (run, env) -> ((Cell) env.getAt(depth, slot)).value = value.eval(run, env);
+    }
+    if (depth == 0) {
+      return (run, env) -> env.slots[slot] = value.eval(run, env);
+    }
+    return (run, env) -> {
+      Object val = value.eval(run, env);
+      env.assignAt(depth, slot, val);
+      return val;
+    };
+  }
+
+  @Override
+  public Evaluator visitCallExpr(Expr.Call expr) {
+    Evaluator callee = compile(expr.callee);
+    Evaluator[] args = compileArgs(expr.args);
+    Token paren = expr.paren;
+    // Up to three arguments are passed as they are, so most calls allocate no array.
+    switch (args.length) {
+      case 0:
+        return (run, env) -> {
+          LoxCallable callable = Interpreter.checkCallable(paren, callee.eval(run, env), 0);
+          return run.call(paren, callable, 0, null, null, null, null);
+        };
+      case 1: {
+        Evaluator arg0 = args[0];
+        return (run, env) -> {
+          Object fn = callee.eval(run, env);
+          Object value0 = arg0.eval(run, env);
+          LoxCallable callable = Interpreter.checkCallable(paren, fn, 1);
+          return run.call(paren, callable, 1, value0, null, null, null);
+        };
+      }
+      case 2: {
+        Evaluator arg0 = args[0];
+        Evaluator arg1 = args[1];
+        return (run, env) -> {
+          Object fn = callee.eval(run, env);
+          Object value0 = arg0.eval(run, env);
+          Object value1 = arg1.eval(run, env);
+          LoxCallable callable = Interpreter.checkCallable(paren, fn, 2);
+          return run.call(paren, callable, 2, value0, value1, null, null);
+        };
+      }
+      case 3: {
+        Evaluator arg0 = args[0];
+        Evaluator arg1 = args[1];
+        Evaluator arg2 = args[2];
+        return (run, env) -> {
+          Object fn = callee.eval(run, env);
+          Object value0 = arg0.eval(run, env);
+          Object value1 = arg1.eval(run, env);
+          Object value2 = arg2.eval(run, env);
+          LoxCallable callable = Interpreter.checkCallable(paren, fn, 3);
+          return run.call(paren, callable, 3, value0, value1, value2, null);
+        };
+      }
+      default:
+        return (run, env) -> {
+          Object fn = callee.eval(run, env);
+          Object[] values = evaluateArgs(args, run, env);
+          LoxCallable callable = Interpreter.checkCallable(paren, fn, values.length);
+          return run.call(paren, callable, values.length, null, null, null, values);
+        };
+    }
+  }
+
+  @Override
+  public Executor visitExpressionStmt(Stmt.Expression stmt) {
+    Evaluator expression = compile(stmt.expression);
+    return (run, env) -> {
+      expression.eval(run, env);
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Executor visitPrintStmt(Stmt.Print stmt) {
+    Evaluator expression = compile(stmt.expression);
+    return (run, env) -> {
+      run.context.out.println(Interpreter.stringify(expression.eval(run, env)));
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Executor visitVarStmt(Stmt.Var stmt) {
+    Evaluator initializer =
+        stmt.initializer == null ? (run, env) -> null : compile(stmt.initializer);
+    int slot = stmt.slot;
+    if (slot == -1) {
+      Token name = stmt.name;
+      int global = stmt.global;
+      return (run, env) -> {
+        run.globals.define(name, global, initializer.eval(run, env));
+        return Completion.NORMAL;
+      };
+    }
+    if (stmt.boxed) {
+      return (run, env) -> {
+        env.define(slot, new Cell(initializer.eval(run, env)));
+        return Completion.NORMAL;
+      };
+    }
+    return (run, env) -> {
+      env.define(slot, initializer.eval(run, env));
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Executor visitBlockStmt(Stmt.Block stmt) {
+    Executor[] statements = compile(stmt.statements);
+    int frameSize = stmt.frameSize;
+    if (frameSize == 0) {
+      return (run, env) -> ClosureRun.execute(statements, run, env);
+    }
+    return (run, env) -> ClosureRun.execute(statements, run, new Environment(env, frameSize));
+  }
+
+  @Override
+  public Executor visitIfStmt(Stmt.If stmt) {
+    Evaluator condition = compile(stmt.condition);
+    Executor thenBranch = stmt.thenBranch.accept(this);
+    if (stmt.elseBranch == null) {
+      return (run, env) -> Interpreter.isTruthy(condition.eval(run, env))
+          ? thenBranch.exec(run, env)
+          : Completion.NORMAL;
+    }
+    Executor elseBranch = stmt.elseBranch.accept(this);
+    return (run, env) -> Interpreter.isTruthy(condition.eval(run, env))
+        ? thenBranch.exec(run, env)
+        : elseBranch.exec(run, env);
+  }
+
+  @Override
+  public Executor visitWhileStmt(Stmt.While stmt) {
+    Evaluator condition = compile(stmt.condition);
+    Executor body = stmt.body.accept(this);
+    return (run, env) -> {
+      while (Interpreter.isTruthy(condition.eval(run, env))) {
+        Completion completion = body.exec(run, env);
+        if (completion != Completion.NORMAL) return completion;
+        LoxInterruptedException.check();
+      }
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Executor visitFunctionStmt(Stmt.Function stmt) {
+    Executor[] body = compile(stmt.body);
+    int slot = stmt.slot;
+    if (slot == -1) {
+      Token name = stmt.name;
+      int global = stmt.global;
+      return (run, env) -> {
+        Cell[] upvalues = run.capture(stmt, env);
+        run.globals.define(name, global, new ClosureFunction(run, stmt, body, upvalues));
+        return Completion.NORMAL;
+      };
+    }
+    if (stmt.boxed) {
+      // The cell has to exist before the closure captures it when the function refers to itself.
+      return (run, env) -> {
+        Cell cell = new Cell(null);
+        env.define(slot, cell);
+        cell.value = new ClosureFunction(run, stmt, body, run.capture(stmt, env));
+        return Completion.NORMAL;
+      };
+    }
+    return (run, env) -> {
+      env.define(slot, new ClosureFunction(run, stmt, body, run.capture(stmt, env)));
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Executor visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.tailCall) {
+      Expr.Call call = (Expr.Call) stmt.value;
+      Evaluator callee = compile(call.callee);
+      Evaluator[] args = compileArgs(call.args);
+      Token paren = call.paren;
+      // As in visitCallExpr, up to three arguments are passed without an array.
+      switch (args.length) {
+        case 0:
+          return (run, env) ->
+              run.tailCall(paren, callee.eval(run, env), 0, null, null, null, null);
+        case 1: {
+          Evaluator arg0 = args[0];
+          return (run, env) -> {
+            Object fn = callee.eval(run, env);
+            return run.tailCall(paren, fn, 1, arg0.eval(run, env), null, null, null);
+          };
+        }
+        case 2: {
+          Evaluator arg0 = args[0];
+          Evaluator arg1 = args[1];
+          return (run, env) -> {
+            Object fn = callee.eval(run, env);
+            Object value0 = arg0.eval(run, env);
+            return run.tailCall(paren, fn, 2, value0, arg1.eval(run, env), null, null);
+          };
+        }
+        case 3: {
+          Evaluator arg0 = args[0];
+          Evaluator arg1 = args[1];
+          Evaluator arg2 = args[2];
+          return (run, env) -> {
+            Object fn = callee.eval(run, env);
+            Object value0 = arg0.eval(run, env);
+            Object value1 = arg1.eval(run, env);
+            return run.tailCall(paren, fn, 3, value0, value1, arg2.eval(run, env), null);
+          };
+        }
+        default:
+          return (run, env) -> {
+            Object fn = callee.eval(run, env);
+            Object[] values = evaluateArgs(args, run, env);
+            return run.tailCall(paren, fn, values.length, null, null, null, values);
+          };
+      }
+    }
+
+    Evaluator value = stmt.value == null ? (run, env) -> null : compile(stmt.value);
+    return (run, env) -> {
+      run.returnValue = value.eval(run, env);
+      return Completion.RETURN;
+    };
+  }
+}
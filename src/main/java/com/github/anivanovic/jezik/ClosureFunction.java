@@ -0,0 +1,111 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * A Lox function on the closure engine: a converted body plus the cells it captured, and the
+ * run that declared it, whose globals it uses.
+ */
+class ClosureFunction implements LoxCallable {
+
+  private final ClosureRun run;
+  private final Stmt.Function declaration;
+  private final Executor[] body;
+  private final Cell[] upvalues;
+
+  ClosureFunction(
+      ClosureRun run, Stmt.Function declaration, Executor[] body, Cell[] upvalues) {
+    this.run = run;
+    this.declaration = declaration;
+    this.body = body;
+    this.upvalues = upvalues;
+  }
+
+  @Override
+  public int arity() {
+    return declaration.variables.size();
+  }
+
+  /** Runs the body, then the targets of its tail calls, in the same Java frame. */
+  @Override
+  public Object call(Interpreter interpreter, Object[] args) {
+    return run(frame(args));
+  }
+
+  // The fixed-arity calls write their arguments straight into the frame.
+
+  @Override
+  public Object call0(Interpreter interpreter) {
+    return run(new Environment(null, declaration.frameSize));
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object arg0) {
+    Environment frame = new Environment(null, declaration.frameSize);
+    bind(frame, 0, arg0);
+    return run(frame);
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object arg0, Object arg1) {
+    Environment frame = new Environment(null, declaration.frameSize);
+    bind(frame, 0, arg0);
+    bind(frame, 1, arg1);
+    return run(frame);
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object arg0, Object arg1, Object arg2) {
+    Environment frame = new Environment(null, declaration.frameSize);
+    bind(frame, 0, arg0);
+    bind(frame, 1, arg1);
+    bind(frame, 2, arg2);
+    return run(frame);
+  }
+
+  private Object run(Environment frame) {
+    ClosureFunction callee = this;
+    while (true) {
+      // A tail call may lead into a function an earlier run declared, whose body hands its
+      // results and globals through that run.
+      ClosureRun run = callee.run;
+      switch (run.executeFunction(callee.body, frame, callee.upvalues)) {
+        case RETURN:
+          return run.takeReturnValue();
+        case TAIL_CALL:
+          callee = run.takeTailCallee();
+          frame = run.takeTailFrame(callee);
+          LoxInterruptedException.check();
+          if (run.profiler != null) run.profiler.replace(callee);
+          break;
+        default:
+          return null;
+      }
+    }
+  }
+
+  /** A new frame for the body with the arguments in their parameter slots. */
+  Environment frame(Object[] args) {
+    Environment frame = new Environment(null, declaration.frameSize);
+    for (int i = 0; i < args.length; i++) {
+      bind(frame, i, args[i]);
+    }
+    return frame;
+  }
+
+  /** A new frame for the body with up to three arguments, the first {@code argc} of these. */
+  Environment frame(int argc, Object arg0, Object arg1, Object arg2) {
+    Environment frame = new Environment(null, declaration.frameSize);
+    if (argc > 0) bind(frame, 0, arg0);
+    if (argc > 1) bind(frame, 1, arg1);
+    if (argc > 2) bind(frame, 2, arg2);
+    return frame;
+  }
+
+  private void bind(Environment frame, int slot, Object arg) {
+    frame.define(slot, declaration.boxedParams[slot] ? new Cell(arg) : arg);
+  }
+
+  @Override
+  public String toString() {
+    return "<fn " + declaration.name.lexem + ">";
+  }
+}
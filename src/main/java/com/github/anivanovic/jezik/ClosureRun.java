@@ -0,0 +1,144 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * The state of one run of a program {@link ClosureCompiler} converted: where it prints, its
+ * globals, how deep its calls are and what its returns and tail calls hand back. Functions the
+ * run declares keep it, so calling them later still uses the globals they were declared in.
+ */
+final class ClosureRun {
+
+  final Context context;
+  final LinkedGlobals globals;
+  private final int maxDepth;
+  private int depth = 0;
+  // Cells captured by the function currently executing.
+  Cell[] upvalues = null;
+  Object returnValue = null;
+  private ClosureFunction tailCallee = null;
+  // Arguments of the last tail call: up to three in tailArg0 to tailArg2, more in tailArgs.
+  private int tailArgc = 0;
+  private Object tailArg0 = null;
+  private Object tailArg1 = null;
+  private Object tailArg2 = null;
+  private Object[] tailArgs = null;
+  // Shadow stack for --profile, or null. Only call sites record lines on this engine.
+  final Profiler profiler;
+  // Handed to natives and host callables; made on the first call to one.
+  private Interpreter interpreter = null;
+
+  ClosureRun(Context context, LinkedGlobals globals, int maxDepth, Profiler profiler) {
+    this.context = context;
+    this.globals = globals;
+    this.maxDepth = maxDepth;
+    this.profiler = profiler;
+  }
+
+  void interpret(Executor[] program) {
+    try {
+      execute(program, this, null);
+    } catch (RuntimeError e) {
+      context.errors.runtimeError(e);
+    }
+  }
+
+  /** Runs a function body in its own frame, with the cells its closure captured. */
+  Completion executeFunction(Executor[] body, Environment frame, Cell[] upvalues) {
+    Cell[] previous = this.upvalues;
+    try {
+      this.upvalues = upvalues;
+      return execute(body, this, frame);
+    } finally {
+      this.upvalues = previous;
+    }
+  }
+
+  /** Hands the value of the last executed return statement to the returning call, clearing it. */
+  Object takeReturnValue() {
+    Object value = returnValue;
+    returnValue = null;
+    return value;
+  }
+
+  ClosureFunction takeTailCallee() {
+    ClosureFunction callee = tailCallee;
+    tailCallee = null;
+    return callee;
+  }
+
+  /** Binds the arguments of the last tail call in a new frame for its callee, clearing them. */
+  Environment takeTailFrame(ClosureFunction callee) {
+    Environment frame = tailArgs != null
+        ? callee.frame(tailArgs)
+        : callee.frame(tailArgc, tailArg0, tailArg1, tailArg2);
+    tailArg0 = null;
+    tailArg1 = null;
+    tailArg2 = null;
+    tailArgs = null;
+    return frame;
+  }
+
+  static Completion execute(Executor[] statements, ClosureRun run, Environment env) {
+    for (Executor statement : statements) {
+      if (Metrics.ENABLED) Metrics.statements.increment();
+      Completion completion = statement.exec(run, env);
+      if (completion != Completion.NORMAL) return completion;
+    }
+    return Completion.NORMAL;
+  }
+
+  /** Makes a call within the depth limit, with the arguments passed as for the interpreter. */
+  Object call(Token paren, LoxCallable callable,
+      int argc, Object arg0, Object arg1, Object arg2, Object[] args) {
+    if (depth == maxDepth) {
+      throw new RuntimeError(paren, "Stack overflow.");
+    }
+    LoxInterruptedException.check();
+    depth++;
+    if (profiler != null) profiler.enter(callable, paren.line);
+    LoxEvents.FunctionCall event = Metrics.beginCall();
+    try {
+      if (!(callable instanceof ClosureFunction) && interpreter == null) {
+        interpreter = new Interpreter(context, maxDepth, false, null);
+      }
+      return Interpreter.dispatch(callable, interpreter, argc, arg0, arg1, arg2, args);
+    } catch (StackOverflowError e) {
+      throw new RuntimeError(paren, "Stack overflow.");
+    } finally {
+      depth--;
+      if (profiler != null) profiler.exit();
+      if (event != null) Metrics.endCall(event, callable);
+    }
+  }
+
+  /**
+   * Returns the result of a call. A Lox function is left to the caller's loop so this frame is
+   * gone before the callee runs; anything else is called here.
+   */
+  Completion tailCall(Token paren, Object fn,
+      int argc, Object arg0, Object arg1, Object arg2, Object[] args) {
+    LoxCallable callable = Interpreter.checkCallable(paren, fn, argc);
+    if (callable instanceof ClosureFunction) {
+      tailCallee = (ClosureFunction) callable;
+      tailArgc = argc;
+      tailArg0 = arg0;
+      tailArg1 = arg1;
+      tailArg2 = arg2;
+      tailArgs = args;
+      return Completion.TAIL_CALL;
+    }
+    returnValue = call(paren, callable, argc, arg0, arg1, arg2, args);
+    return Completion.RETURN;
+  }
+
+  /** Collects the cells a new closure of {@code stmt} shares with the code around it. */
+  Cell[] capture(Stmt.Function stmt, Environment env) {
+    Cell[] cells = new Cell[stmt.captures.length];
+    for (int i = 0; i < cells.length; i++) {
+      Capture capture = stmt.captures[i];
+      cells[i] = capture.local
+          ? (Cell) env.getAt(capture.depth, capture.index)
+          : upvalues[capture.index];
+    }
+    return cells;
+  }
+}
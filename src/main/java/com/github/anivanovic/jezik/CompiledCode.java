@@ -0,0 +1,14 @@
+package com.github.anivanovic.jezik;
+
+/** Lox code that {@link JvmCompiler} turned into a JVM class. */
+interface CompiledCode {
+
+  /** Returned by a body whose speculation on its arguments failed before it did anything. */
+  Object DEOPTIMIZE = new Object();
+
+  /**
+   * Runs the code. A function body returns its value or a {@link CompiledFunction.TailCall}
+   * for its caller to make; top-level code returns null.
+   */
+  Object run(Interpreter interpreter, Object[] args);
+}
@@ -0,0 +1,58 @@
+package com.github.anivanovic.jezik;
+
+/** A Lox function whose body runs as JVM bytecode instead of being walked. */
+class CompiledFunction implements LoxCallable {
+
+  /**
+   * A call in tail position to a Lox function, compiled or walked, left for the loop of the
+   * calling function to make.
+   */
+  static class TailCall {
+    final LoxCallable callee;
+    final Object[] args;
+
+    TailCall(LoxCallable callee, Object[] args) {
+      this.callee = callee;
+      this.args = args;
+    }
+  }
+
+  final Stmt.Function declaration;
+  private final CompiledCode code;
+  // The globals of the run that declared the function.
+  private final LinkedGlobals globals;
+
+  CompiledFunction(Stmt.Function declaration, CompiledCode code, LinkedGlobals globals) {
+    this.declaration = declaration;
+    this.code = code;
+    this.globals = globals;
+  }
+
+  @Override
+  public int arity() {
+    return declaration.variables.size();
+  }
+
+  /** Runs the body, then the targets of its tail calls, in the same Java frame. */
+  @Override
+  public Object call(Interpreter interpreter, Object[] args) {
+    Object result = interpreter.run(code, globals, args);
+    while (result instanceof TailCall) {
+      TailCall tailCall = (TailCall) result;
+      LoxInterruptedException.check();
+      if (!(tailCall.callee instanceof CompiledFunction)) {
+        if (interpreter.profiler != null) interpreter.profiler.replace(tailCall.callee);
+        return tailCall.callee.call(interpreter, tailCall.args);
+      }
+      CompiledFunction callee = (CompiledFunction) tailCall.callee;
+      if (interpreter.profiler != null) interpreter.profiler.replace(callee);
+      result = interpreter.run(callee.code, callee.globals, tailCall.args);
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "<fn " + declaration.name.lexem + ">";
+  }
+}
@@ -0,0 +1,491 @@
+package com.github.anivanovic.jezik;
+
+import static com.github.anivanovic.jezik.OpCode.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles a resolved program into bytecode for the {@link VM}. Locals live in stack slots
+ * of their function's call frame and variables captured by inner functions are reached
+ * through upvalues, the same way the C implementation lays them out.
+ */
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+  private static final int MAX_SLOTS = 256;
+
+  private static class Local {
+    final String name;
+    final int depth;
+    boolean captured = false;
+
+    Local(String name, int depth) {
+      this.name = name;
+      this.depth = depth;
+    }
+  }
+
+  private static class UpvalueRef {
+    final int index;
+    final boolean isLocal;
+
+    UpvalueRef(int index, boolean isLocal) {
+      this.index = index;
+      this.isLocal = isLocal;
+    }
+  }
+
+  private static class FunctionState {
+    final FunctionState enclosing;
+    final BytecodeFunction function;
+    final List<Local> locals = new ArrayList<>();
+    final List<UpvalueRef> upvalues = new ArrayList<>();
+    int scopeDepth = 0;
+    // Values on the stack at the current point of the code, and the most there ever are.
+    int stackDepth;
+    int maxStack;
+
+    FunctionState(FunctionState enclosing, BytecodeFunction function) {
+      this.enclosing = enclosing;
+      this.function = function;
+      // Slot zero holds the closure being executed, followed by the arguments.
+      locals.add(new Local("", 0));
+      stackDepth = 1 + function.arity;
+      maxStack = stackDepth;
+    }
+  }
+
+  private FunctionState current;
+  private int line = 1;
+  private final ErrorReporter errors;
+  // Numbers the globals of the compile unit, as the resolver did.
+  private final Symbols globals;
+
+  Compiler() {
+    this(new ErrorReporter(System.err), new Symbols());
+  }
+
+  Compiler(ErrorReporter errors, Symbols globals) {
+    this.errors = errors;
+    this.globals = globals;
+  }
+
+  BytecodeFunction compile(List<Stmt> statements) {
+    current = new FunctionState(null, new BytecodeFunction(null, 0));
+    for (Stmt statement : statements) {
+      compile(statement);
+    }
+    return endFunction();
+  }
+
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  private BytecodeFunction endFunction() {
+    emitOp(OP_NIL);
+    emitOp(OP_RETURN);
+    BytecodeFunction function = current.function;
+    function.upvalueCount = current.upvalues.size();
+    function.maxStack = current.maxStack;
+    function.chunk.seal();
+    current = current.enclosing;
+    return function;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    compile(expr.left);
+    compile(expr.right);
+
+    line = expr.operator.line;
+    switch (expr.operator.type) {
+      case PLUS: emitOp(OP_ADD); break;
+      case MINUS: emitOp(OP_SUBTRACT); break;
+      case STAR: emitOp(OP_MULTIPLY); break;
+      case SLASH: emitOp(OP_DIVIDE); break;
+      case GREATER: emitOp(OP_GREATER); break;
+      case GREATER_EQUAL: emitOp(OP_GREATER_EQUAL); break;
+      case LESS: emitOp(OP_LESS); break;
+      case LESS_EQUAL: emitOp(OP_LESS_EQUAL); break;
+      case EQUAL_EQUAL: emitOp(OP_EQUAL); break;
+      case BANG_EQUAL:
+        emitOp(OP_EQUAL);
+        emitOp(OP_NOT);
+        break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emitOp(OP_NIL);
+    } else if (Boolean.TRUE.equals(expr.value)) {
+      emitOp(OP_TRUE);
+    } else if (Boolean.FALSE.equals(expr.value)) {
+      emitOp(OP_FALSE);
+    } else {
+      emitConstant(OP_CONST, expr.value);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+
+    line = expr.operator.line;
+    switch (expr.operator.type) {
+      case MINUS: emitOp(OP_NEGATE); break;
+      case BANG: emitOp(OP_NOT); break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+
+    line = expr.operator.line;
+    if (expr.operator.type == TokenType.OR) {
+      int elseJump = emitJump(OP_JUMP_IF_FALSE);
+      int endJump = emitJump(OP_JUMP);
+      patchJump(elseJump);
+      emitOp(OP_POP);
+      compile(expr.right);
+      patchJump(endJump);
+    } else {
+      int endJump = emitJump(OP_JUMP_IF_FALSE);
+      emitOp(OP_POP);
+      compile(expr.right);
+      patchJump(endJump);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    line = expr.name.line;
+    emitVariable(expr.name, OP_GET_LOCAL, OP_GET_UPVALUE, OP_GET_GLOBAL);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+
+    line = expr.name.line;
+    emitVariable(expr.name, OP_SET_LOCAL, OP_SET_UPVALUE, OP_SET_GLOBAL);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    compile(expr.callee);
+    for (Expr arg : expr.args) {
+      compile(arg);
+    }
+
+    line = expr.paren.line;
+    emitOp(OP_CALL);
+    emit((byte) expr.args.size());
+    current.stackDepth -= expr.args.size();
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    emitOp(OP_POP);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emitOp(OP_PRINT);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      emitOp(OP_NIL);
+    }
+
+    line = stmt.name.line;
+    defineVariable(stmt.name);
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    compile(stmt.condition);
+
+    int thenJump = emitJump(OP_JUMP_IF_FALSE);
+    emitOp(OP_POP);
+    compile(stmt.thenBranch);
+    int elseJump = emitJump(OP_JUMP);
+
+    patchJump(thenJump);
+    // The else path starts with the condition still on the stack.
+    current.stackDepth++;
+    emitOp(OP_POP);
+    if (stmt.elseBranch != null) {
+      compile(stmt.elseBranch);
+    }
+    patchJump(elseJump);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int loopStart = current.function.chunk.count;
+    compile(stmt.condition);
+
+    int exitJump = emitJump(OP_JUMP_IF_FALSE);
+    emitOp(OP_POP);
+    compile(stmt.body);
+    emitLoop(loopStart);
+
+    patchJump(exitJump);
+    // So does the path leaving the loop.
+    current.stackDepth++;
+    emitOp(OP_POP);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    line = stmt.name.line;
+    // Declare the name up front so the body can call itself recursively.
+    if (current.scopeDepth > 0) {
+      addLocal(stmt.name);
+    }
+
+    current = new FunctionState(current, new BytecodeFunction(stmt.name.lexem, stmt.variables.size()));
+    current.scopeDepth = 1;
+    for (Token parameter : stmt.variables) {
+      addLocal(parameter);
+    }
+    for (Stmt statement : stmt.body) {
+      compile(statement);
+    }
+    List<UpvalueRef> upvalues = current.upvalues;
+    BytecodeFunction function = endFunction();
+
+    line = stmt.name.line;
+    emitConstant(OP_CLOSURE, function);
+    for (UpvalueRef upvalue : upvalues) {
+      emit((byte) (upvalue.isLocal ? 1 : 0));
+      emit((byte) upvalue.index);
+    }
+
+    if (current.scopeDepth == 0) {
+      emitGlobal(OP_DEFINE_GLOBAL, stmt.name);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.tailCall) {
+      Expr.Call call = (Expr.Call) stmt.value;
+      compile(call.callee);
+      for (Expr arg : call.args) {
+        compile(arg);
+      }
+
+      line = call.paren.line;
+      emitOp(OP_TAIL_CALL);
+      emit((byte) call.args.size());
+      current.stackDepth -= call.args.size();
+      // Only reached when the callee was a native; a closure takes over this frame.
+      line = stmt.token.line;
+      emitOp(OP_RETURN);
+      return null;
+    }
+
+    if (stmt.value != null) {
+      compile(stmt.value);
+    } else {
+      emitOp(OP_NIL);
+    }
+
+    line = stmt.token.line;
+    emitOp(OP_RETURN);
+    return null;
+  }
+
+  private void beginScope() {
+    current.scopeDepth++;
+  }
+
+  private void endScope() {
+    current.scopeDepth--;
+
+    List<Local> locals = current.locals;
+    while (locals.size() > 1 && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+      Local local = locals.remove(locals.size() - 1);
+      emitOp(local.captured ? OP_CLOSE_UPVALUE : OP_POP);
+    }
+  }
+
+  private void defineVariable(Token name) {
+    if (current.scopeDepth > 0) {
+      addLocal(name);
+    } else {
+      emitGlobal(OP_DEFINE_GLOBAL, name);
+    }
+  }
+
+  private void addLocal(Token name) {
+    if (current.locals.size() == MAX_SLOTS) {
+      errors.error(name, "Too many local variables in function.");
+      return;
+    }
+    current.locals.add(new Local(name.lexem, current.scopeDepth));
+  }
+
+  private void emitVariable(Token name, byte localOp, byte upvalueOp, byte globalOp) {
+    int slot = resolveLocal(current, name);
+    if (slot != -1) {
+      emitOp(localOp);
+      emit((byte) slot);
+      return;
+    }
+
+    int upvalue = resolveUpvalue(current, name);
+    if (upvalue != -1) {
+      emitOp(upvalueOp);
+      emit((byte) upvalue);
+      return;
+    }
+
+    emitGlobal(globalOp, name);
+  }
+
+  private int resolveLocal(FunctionState state, Token name) {
+    for (int i = state.locals.size() - 1; i > 0; i--) {
+      if (state.locals.get(i).name.equals(name.lexem)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int resolveUpvalue(FunctionState state, Token name) {
+    if (state.enclosing == null) return -1;
+
+    int local = resolveLocal(state.enclosing, name);
+    if (local != -1) {
+      state.enclosing.locals.get(local).captured = true;
+      return addUpvalue(state, name, local, true);
+    }
+
+    int upvalue = resolveUpvalue(state.enclosing, name);
+    if (upvalue != -1) {
+      return addUpvalue(state, name, upvalue, false);
+    }
+    return -1;
+  }
+
+  private int addUpvalue(FunctionState state, Token name, int index, boolean isLocal) {
+    for (int i = 0; i < state.upvalues.size(); i++) {
+      UpvalueRef upvalue = state.upvalues.get(i);
+      if (upvalue.index == index && upvalue.isLocal == isLocal) {
+        return i;
+      }
+    }
+
+    if (state.upvalues.size() == MAX_SLOTS) {
+      errors.error(name, "Too many closure variables in function.");
+      return 0;
+    }
+    state.upvalues.add(new UpvalueRef(index, isLocal));
+    return state.upvalues.size() - 1;
+  }
+
+  private void emitOp(byte op) {
+    emit(op);
+    FunctionState state = current;
+    state.stackDepth += STACK_EFFECT[op];
+    if (state.stackDepth > state.maxStack) state.maxStack = state.stackDepth;
+  }
+
+  private void emit(byte b) {
+    current.function.chunk.write(b, line);
+  }
+
+  private void emitConstant(byte op, Object value) {
+    int index = current.function.chunk.addConstant(value);
+    if (index > 0xffff) {
+      errors.error(line, "Too many constants in one chunk.");
+      return;
+    }
+    emitOp(op);
+    emit((byte) (index >> 8));
+    emit((byte) index);
+  }
+
+  private void emitGlobal(byte op, Token name) {
+    int index = globals.indexOf(name.lexem);
+    if (index > 0xffff) {
+      errors.error(name, "Too many global variables.");
+      return;
+    }
+    emitOp(op);
+    emit((byte) (index >> 8));
+    emit((byte) index);
+  }
+
+  private int emitJump(byte op) {
+    emitOp(op);
+    emit((byte) 0xff);
+    emit((byte) 0xff);
+    return current.function.chunk.count - 2;
+  }
+
+  private void patchJump(int offset) {
+    Chunk chunk = current.function.chunk;
+    int jump = chunk.count - offset - 2;
+    if (jump > 0xffff) {
+      errors.error(line, "Too much code to jump over.");
+    }
+    chunk.code[offset] = (byte) (jump >> 8);
+    chunk.code[offset + 1] = (byte) jump;
+  }
+
+  private void emitLoop(int loopStart) {
+    emitOp(OP_LOOP);
+    int offset = current.function.chunk.count - loopStart + 2;
+    if (offset > 0xffff) {
+      errors.error(line, "Loop body too large.");
+    }
+    emit((byte) (offset >> 8));
+    emit((byte) offset);
+  }
+}
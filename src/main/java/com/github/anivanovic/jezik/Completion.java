@@ -0,0 +1,12 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * How a statement finished executing. Enclosing statements stop and pass the signal up
+ * until the function call that consumes it, so returning never throws.
+ */
+enum Completion {
+  NORMAL,
+  RETURN,
+  // A return whose value is a call to a Lox function; the caller's call loop makes the call.
+  TAIL_CALL,
+}
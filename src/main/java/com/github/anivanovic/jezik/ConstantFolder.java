@@ -0,0 +1,175 @@
+package com.github.anivanovic.jezik;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates operators whose operands are literals and replaces reads of local variables that
+ * are initialized with a constant and never assigned. Anything that would fail at runtime,
+ * like {@code "a" - 1}, is left alone so the error still happens when the code runs.
+ *
+ * <p>Globals are never propagated: a function may read one before its definition runs, and
+ * that must stay an error.
+ */
+class ConstantFolder extends AstRewriter {
+
+  /** Marks names bound by something other than a var, e.g. parameters and functions. */
+  private static final Object NOT_CONSTANT = new Object();
+
+  private final Set<Stmt.Var> reassigned = Collections.newSetFromMap(new IdentityHashMap<>());
+  private final Map<Stmt.Var, Object> constants = new IdentityHashMap<>();
+  private final Deque<Map<String, Object>> scopes = new ArrayDeque<>();
+  private boolean propagate;
+
+  @Override
+  public List<Stmt> apply(List<Stmt> statements) {
+    // The first walk only finds out which locals are ever assigned to.
+    propagate = false;
+    rewrite(statements);
+
+    propagate = true;
+    return rewrite(statements);
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = rewrite(expr.left);
+    Expr right = rewrite(expr.right);
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+      Object folded = fold(expr.operator.type, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+      if (folded != null) return new Expr.Literal(folded);
+    }
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  /** The value of a binary operator on two constants, or null when it has to fail at runtime. */
+  private static Object fold(TokenType operator, Object left, Object right) {
+    if (operator == TokenType.PLUS && left instanceof String && right instanceof String) {
+      return (String) left + right;
+    }
+    if (!(left instanceof Double) || !(right instanceof Double)) return null;
+
+    double a = (double) left;
+    double b = (double) right;
+    switch (operator) {
+      case PLUS: return a + b;
+      case MINUS: return a - b;
+      case STAR: return a * b;
+      case SLASH: return a / b;
+      case GREATER: return a > b;
+      case GREATER_EQUAL: return a >= b;
+      case LESS: return a < b;
+      case LESS_EQUAL: return a <= b;
+      // Same comparison the interpreter uses for equality.
+      case EQUAL_EQUAL: return Double.compare(a, b) == 0;
+      case BANG_EQUAL: return Double.compare(a, b) != 0;
+    }
+    return null;
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr inner = rewrite(expr.expression);
+    if (inner instanceof Expr.Literal) return inner;
+    return new Expr.Grouping(inner);
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = rewrite(expr.right);
+    if (right instanceof Expr.Literal) {
+      Object value = ((Expr.Literal) right).value;
+      if (expr.operator.type == TokenType.BANG) {
+        return new Expr.Literal(!Interpreter.isTruthy(value));
+      }
+      if (expr.operator.type == TokenType.MINUS && value instanceof Double) {
+        return new Expr.Literal(-(double) value);
+      }
+    }
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = rewrite(expr.left);
+    Expr right = rewrite(expr.right);
+    if (left instanceof Expr.Literal) {
+      boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+      boolean shortCircuits = expr.operator.type == TokenType.OR ? truthy : !truthy;
+      return shortCircuits ? left : right;
+    }
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    Object binding = lookup(expr.name);
+    if (propagate && binding instanceof Stmt.Var
+        && !reassigned.contains(binding) && constants.containsKey(binding)) {
+      return new Expr.Literal(constants.get(binding));
+    }
+    return new Expr.Variable(expr.name);
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Object binding = lookup(expr.name);
+    if (binding instanceof Stmt.Var) {
+      reassigned.add((Stmt.Var) binding);
+    }
+    return new Expr.Assign(expr.name, rewrite(expr.value));
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Expr initializer = rewrite(stmt.initializer);
+    if (!scopes.isEmpty()) {
+      scopes.peek().put(stmt.name.lexem, stmt);
+      if (initializer == null) {
+        constants.put(stmt, null);
+      } else if (initializer instanceof Expr.Literal) {
+        constants.put(stmt, ((Expr.Literal) initializer).value);
+      }
+    }
+    return new Stmt.Var(stmt.name, initializer);
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    scopes.push(new HashMap<>());
+    List<Stmt> statements = rewrite(stmt.statements);
+    scopes.pop();
+    return new Stmt.Block(statements);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    if (!scopes.isEmpty()) {
+      scopes.peek().put(stmt.name.lexem, NOT_CONSTANT);
+    }
+
+    // Parameters and the body share one scope, as in the resolver.
+    Map<String, Object> scope = new HashMap<>();
+    for (Token parameter : stmt.variables) {
+      scope.put(parameter.lexem, NOT_CONSTANT);
+    }
+    scopes.push(scope);
+    List<Stmt> body = rewrite(stmt.body);
+    scopes.pop();
+    return new Stmt.Function(stmt.name, stmt.variables, body);
+  }
+
+  private Object lookup(Token name) {
+    for (Map<String, Object> scope : scopes) {
+      Object binding = scope.get(name.lexem);
+      if (binding != null) return binding;
+    }
+    return null;
+  }
+}
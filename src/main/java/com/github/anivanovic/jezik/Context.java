@@ -0,0 +1,39 @@
+package com.github.anivanovic.jezik;
+
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * The state of running programs: globals, where {@code print} writes and where runtime errors
+ * are reported. Programs run one after another in a context see each other's globals, as
+ * lines in the prompt do. A context is confined to one run at a time; concurrent runs each
+ * need their own.
+ */
+public final class Context {
+  final Globals globals;
+  final PrintStream out;
+  final ErrorReporter errors;
+
+  public Context(PrintStream out, ErrorReporter errors) {
+    this(new Globals(), out, errors);
+    for (Map.Entry<String, LoxCallable> global : Natives.all().entrySet()) {
+      globals.defineCell(globals.slot(global.getKey()), global.getValue());
+    }
+  }
+
+  /** A context over existing globals, such as the ones behind script engine bindings. */
+  Context(Globals globals, PrintStream out, ErrorReporter errors) {
+    this.globals = globals;
+    this.out = out;
+    this.errors = errors;
+  }
+
+  /** A context printing to standard output and reporting to standard error. */
+  static Context standard() {
+    return new Context(System.out, new ErrorReporter(System.err));
+  }
+
+  public ErrorReporter errors() {
+    return errors;
+  }
+}
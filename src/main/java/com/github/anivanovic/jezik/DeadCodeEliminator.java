@@ -0,0 +1,58 @@
+package com.github.anivanovic.jezik;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drops code that can never run: branches of an if whose condition is a literal, loops whose
+ * condition is a falsey literal and statements following a return.
+ */
+class DeadCodeEliminator extends AstRewriter {
+
+  @Override
+  List<Stmt> rewrite(List<Stmt> statements) {
+    List<Stmt> result = new ArrayList<>(statements.size());
+    for (Stmt statement : statements) {
+      Stmt rewritten = rewrite(statement);
+      if (rewritten == null) continue;
+
+      result.add(rewritten);
+      if (alwaysReturns(rewritten)) break;
+    }
+    return result;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = rewrite(stmt.condition);
+    if (condition instanceof Expr.Literal) {
+      return Interpreter.isTruthy(((Expr.Literal) condition).value)
+          ? rewrite(stmt.thenBranch)
+          : rewrite(stmt.elseBranch);
+    }
+    return new Stmt.If(condition, rewriteBranch(stmt.thenBranch), rewrite(stmt.elseBranch));
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = rewrite(stmt.condition);
+    if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+      return null;
+    }
+    return new Stmt.While(condition, rewriteBranch(stmt.body));
+  }
+
+  private static boolean alwaysReturns(Stmt stmt) {
+    if (stmt instanceof Stmt.Return) return true;
+    if (stmt instanceof Stmt.Block) {
+      List<Stmt> statements = ((Stmt.Block) stmt).statements;
+      return !statements.isEmpty() && alwaysReturns(statements.get(statements.size() - 1));
+    }
+    if (stmt instanceof Stmt.If) {
+      Stmt.If branch = (Stmt.If) stmt;
+      return branch.elseBranch != null
+          && alwaysReturns(branch.thenBranch) && alwaysReturns(branch.elseBranch);
+    }
+    return false;
+  }
+}
@@ -0,0 +1,160 @@
+package com.github.anivanovic.jezik;
+
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Compiles Lox source into {@link Program}s and runs them. An engine holds only its settings,
+ * so one engine can compile and run on many threads at once; the state of a run lives in the
+ * {@link Context} it is given.
+ *
+ * <p>Runs use the calling thread's stack: the tree engines recurse in Java for every Lox call,
+ * so a thread has to have room for the depth it is allowed.
+ */
+public final class Engine {
+
+  /** Ways to execute a program. */
+  public enum Kind {
+    TREE,
+    VM,
+    JVM,
+    TIERED,
+    CLOSURE,
+  }
+
+  private final Kind kind;
+  private final int maxDepth;
+  private final boolean optimize;
+  private final Profiler profiler;
+
+  public Engine(Kind kind) {
+    this(kind, VM.DEFAULT_MAX_FRAMES, false);
+  }
+
+  public Engine(Kind kind, int maxDepth, boolean optimize) {
+    this(kind, maxDepth, optimize, null);
+  }
+
+  // A profiler has one shadow stack, so an engine with one must only run on one thread.
+  Engine(Kind kind, int maxDepth, boolean optimize, Profiler profiler) {
+    this.kind = kind;
+    this.maxDepth = maxDepth;
+    this.optimize = optimize;
+    this.profiler = profiler;
+  }
+
+  public Kind kind() {
+    return kind;
+  }
+
+  public int maxDepth() {
+    return maxDepth;
+  }
+
+  /** Returns the compiled program, or null after reporting its errors to {@code errors}. */
+  public Program compile(String source, ErrorReporter errors) {
+    return compile(new Scanner(source, errors), errors);
+  }
+
+  public Program compile(Reader source, ErrorReporter errors) {
+    return compile(new Scanner(source, errors), errors);
+  }
+
+  Program compile(Scanner scanner, ErrorReporter errors) {
+    List<Stmt> statements = parse(scanner);
+    if (errors.hadError()) return null;
+    return compile(statements, errors);
+  }
+
+  /** Parses without resolving, for callers that keep the tree, such as the AST cache. */
+  static List<Stmt> parse(Scanner scanner) {
+    LoxEvents.Phase phase = Metrics.begin("parse");
+    try {
+      return new Parser(scanner).parse();
+    } finally {
+      Metrics.end(phase);
+    }
+  }
+
+  /** Resolves and compiles freshly parsed statements, which must not be shared yet. */
+  Program compile(List<Stmt> statements, ErrorReporter errors) {
+    Symbols globals = new Symbols();
+    LoxEvents.Phase phase = Metrics.begin("resolve");
+    new Resolver(errors, globals).resolve(statements);
+    Metrics.end(phase);
+    if (errors.hadError()) return null;
+
+    if (optimize) {
+      // The passes build a new tree, which needs its own slots and frame sizes.
+      phase = Metrics.begin("optimize");
+      statements = Optimizer.standard().optimize(statements);
+      new Resolver(errors, globals).resolve(statements);
+      Metrics.end(phase);
+      if (errors.hadError()) return null;
+    }
+
+    BytecodeFunction bytecode = null;
+    CompiledCode compiled = null;
+    Executor[] closures = null;
+    if (kind == Kind.VM) {
+      phase = Metrics.begin("compile");
+      bytecode = new Compiler(errors, globals).compile(statements);
+      Metrics.end(phase);
+      if (errors.hadError()) return null;
+    } else if (kind == Kind.JVM) {
+      // Programs the JVM tier refuses, such as ones with closures, are walked instead.
+      phase = Metrics.begin("compile");
+      compiled = JvmCompiler.compileScript(statements);
+      Metrics.end(phase);
+    } else if (kind == Kind.CLOSURE) {
+      phase = Metrics.begin("compile");
+      closures = new ClosureCompiler().compile(statements);
+      Metrics.end(phase);
+    }
+    return new Program(kind, statements, globals.names(), bytecode, compiled, closures);
+  }
+
+  /** Runs the program on the calling thread; runtime errors go to the context's reporter. */
+  public void run(Program program, Context context) {
+    if (program.kind != kind) {
+      throw new IllegalArgumentException("Program was compiled for the "
+          + program.kind.name().toLowerCase() + " engine, not " + kind.name().toLowerCase() + ".");
+    }
+    LoxEvents.Phase phase = Metrics.begin("run");
+    if (profiler != null) profiler.runStarted();
+    try {
+      LinkedGlobals globals = context.globals.link(program.globals);
+      switch (kind) {
+        case VM:
+          new VM(context, maxDepth).interpret(program.bytecode, globals);
+          break;
+        case CLOSURE:
+          new ClosureRun(context, globals, maxDepth, profiler).interpret(program.closures);
+          break;
+        default:
+          Interpreter interpreter = new Interpreter(context, maxDepth, kind == Kind.TIERED, profiler);
+          if (program.compiled != null) {
+            interpreter.interpret(program.compiled, globals);
+          } else {
+            interpreter.interpret(program.statements, globals);
+          }
+          break;
+      }
+    } finally {
+      if (profiler != null) profiler.runFinished();
+      Metrics.end(phase);
+    }
+  }
+
+  /**
+   * Calls a function a program left in {@code context}, on the calling thread. Unlike
+   * {@link #run}, a runtime error is thrown to the caller instead of reported.
+   */
+  public Object call(Context context, Object function, List<Object> args) {
+    if (function instanceof BytecodeClosure) {
+      return new VM(context, maxDepth).call((BytecodeClosure) function, args);
+    }
+    Interpreter interpreter = new Interpreter(context, maxDepth, kind == Kind.TIERED, profiler);
+    return interpreter.call(new Token(null, "", null, 0), function, args.toArray());
+  }
+}
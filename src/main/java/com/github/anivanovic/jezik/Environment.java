@@ -1,60 +1,34 @@
 package com.github.anivanovic.jezik;
 
-import java.util.HashMap;
-import java.util.Map;
-
+/**
+ * Fixed-size frame of local variables. The {@link Resolver} assigns every local a slot in
+ * its scope's frame and records how many frames up from the use site that scope lives.
+ */
 public class Environment {
-    private final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
-
-    public Environment() {
-        enclosing = null;
-    }
+    final Environment enclosing;
+    final Object[] slots;
 
-    public Environment(Environment enclosing) {
+    public Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        this.slots = new Object[size];
+        if (Metrics.ENABLED) Metrics.environments.increment();
     }
 
-    public void define(Token name, Object value){
-        if (!values.containsKey(name.lexem)) {
-            values.put(name.lexem, value);
-            return;
-        }
-
-        throw new RuntimeError(name, "Variable '" + name.lexem + "' already declared.");
-    }
-
-    public Object get(Token name) {
-        if (values.containsKey(name.lexem)) return values.get(name.lexem);
-        if (enclosing != null) return enclosing.get(name);
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexem + "'.");
-    }
-
-    public void assign(Token name, Object val) {
-        if (values.containsKey(name.lexem)) {
-            values.put(name.lexem, val);
-            return;
-        }
-        if (enclosing != null) {
-          enclosing.assign(name, val);
-          return;
-        }
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexem + "'.");
+    public void define(int slot, Object value) {
+        slots[slot] = value;
     }
 
-    public Object getAt(Token name, Integer dist) {
-        return ancestor(dist).values.get(name);
+    public Object getAt(int depth, int slot) {
+        return ancestor(depth).slots[slot];
     }
 
-    public void assignAt(Integer dist, Token name, Object val) {
-        ancestor(dist).values.put(name.lexem, val);
+    public void assignAt(int depth, int slot, Object val) {
+        ancestor(depth).slots[slot] = val;
     }
 
-    private Environment ancestor(Integer dist) {
+    private Environment ancestor(int depth) {
         Environment env = this;
-        for (int i = 0; i < dist; i++) {
+        for (int i = 0; i < depth; i++) {
             env = env.enclosing;
         }
 
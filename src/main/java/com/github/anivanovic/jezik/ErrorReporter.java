@@ -0,0 +1,73 @@
+package com.github.anivanovic.jezik;
+
+import java.io.PrintStream;
+
+/**
+ * Where the errors of compiling and running a script go, and whether there were any. Each
+ * compilation or run gets its own reporter, so scripts on different threads don't see each
+ * other's errors.
+ */
+public class ErrorReporter {
+  private final PrintStream err;
+  private boolean hadError = false;
+  private boolean hadRuntimeError = false;
+  // The first error, for callers that raise it instead of showing the output.
+  private String firstError = null;
+  private int firstErrorLine = -1;
+
+  public ErrorReporter(PrintStream err) {
+    this.err = err;
+  }
+
+  public boolean hadError() {
+    return hadError;
+  }
+
+  public boolean hadRuntimeError() {
+    return hadRuntimeError;
+  }
+
+  /** The first error's message, or null if there was none. */
+  String firstError() {
+    return firstError;
+  }
+
+  int firstErrorLine() {
+    return firstErrorLine;
+  }
+
+  void error(int line, String message) {
+    report(line, "", message);
+  }
+
+  void error(Token token, String message) {
+    if (token.type == TokenType.EOF) {
+      report(token.line, " at end", message);
+    } else if (token.type == TokenType.STRING) {
+      // String lexemes share the unquoted literal text.
+      report(token.line, " at '\"" + token.lexem + "\"'", message);
+    } else {
+      report(token.line, " at '" + token.lexem + "'", message);
+    }
+  }
+
+  void runtimeError(RuntimeError e) {
+    Metrics.runtimeError(e);
+    err.println(e.getMessage() + "\n[line " + e.token.line + "]");
+    hadRuntimeError = true;
+    first(e.getMessage(), e.token.line);
+  }
+
+  private void report(int line, String where, String message) {
+    err.println("[line " + line + "] Error" + where + ": " + message);
+    hadError = true;
+    first("Error" + where + ": " + message, line);
+  }
+
+  private void first(String message, int line) {
+    if (firstError == null) {
+      firstError = message;
+      firstErrorLine = line;
+    }
+  }
+}
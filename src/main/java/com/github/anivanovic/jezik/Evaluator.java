@@ -0,0 +1,16 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * An expression converted by {@link ClosureCompiler} into a lambda that holds its children,
+ * operator and resolved slot, so evaluating it is a chain of direct calls. The run it belongs
+ * to is passed in, so one conversion serves every run of the program.
+ */
+interface Evaluator {
+
+  Object eval(ClosureRun run, Environment env);
+
+  /** An expression the resolver proved numeric, evaluated without boxing. */
+  interface Numeric {
+    double eval(ClosureRun run, Environment env);
+  }
+}
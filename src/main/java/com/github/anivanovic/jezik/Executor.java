@@ -0,0 +1,7 @@
+package com.github.anivanovic.jezik;
+
+/** A statement converted by {@link ClosureCompiler}, returning how it finished. */
+interface Executor {
+
+  Completion exec(ClosureRun run, Environment env);
+}
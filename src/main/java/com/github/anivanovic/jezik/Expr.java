@@ -19,6 +19,10 @@ abstract class Expr {
     final Token operator;
     final Expr right;
 
+    boolean numericLeft;
+    boolean numericRight;
+    Specialization state = Specialization.UNINITIALIZED;
+
     Binary(Expr left, Token operator, Expr right) {
       this.left = left;
       this.operator = operator;
@@ -64,6 +68,9 @@ abstract class Expr {
     final Token operator;
     final Expr right;
 
+    boolean numericRight;
+    Specialization state = Specialization.UNINITIALIZED;
+
     Unary(Token operator, Expr right) {
       this.operator = operator;
       this.right = right;
@@ -97,6 +104,13 @@ abstract class Expr {
 
     final Token name;
 
+    int depth = -1;
+    int slot;
+    int upvalue = -1;
+    boolean boxed;
+    int global = -1;
+    Specialization state = Specialization.UNINITIALIZED;
+
     Variable(Token name) {
       this.name = name;
     }
@@ -112,6 +126,12 @@ abstract class Expr {
     final Token name;
     final Expr value;
 
+    int depth = -1;
+    int slot;
+    int upvalue = -1;
+    boolean boxed;
+    int global = -1;
+
     Assign(Token name, Expr value) {
       this.name = name;
       this.value = value;
@@ -129,6 +149,9 @@ abstract class Expr {
     final Token paren;
     final List<Expr> args;
 
+    Specialization state = Specialization.UNINITIALIZED;
+    Stmt.Function target;
+
     Call(Expr callee, Token paren, List<Expr> args) {
       this.callee = callee;
       this.paren = paren;
@@ -0,0 +1,88 @@
+package com.github.anivanovic.jezik;
+
+import java.util.Arrays;
+
+/**
+ * The top-level variables of a {@link Context}, kept in cells numbered by the context's own
+ * {@link Symbols}. Programs number the globals they use separately and are {@linkplain #link
+ * linked} to the cells before they run, so a use is still an array read instead of a map lookup.
+ * Names may be linked before they are defined; a cell simply stays undefined until its
+ * definition runs.
+ */
+public class Globals {
+    /** Marks a cell whose variable has not been defined yet. */
+    static final Object UNDEFINED = new Object();
+
+    private final Symbols symbols = new Symbols();
+    private Object[] values = new Object[0];
+    // Whether declaring a defined global replaces it instead of failing.
+    private final boolean redeclarable;
+
+    Globals() {
+        this(false);
+    }
+
+    Globals(boolean redeclarable) {
+        this.redeclarable = redeclarable;
+    }
+
+    /** Returns the cell index for a global name, adding an undefined cell on first sight. */
+    int slot(String name) {
+        int index = symbols.indexOf(name);
+        if (index >= values.length) grow(index);
+        return index;
+    }
+
+    /** Returns the cell index of a global name, or -1 if no program or binding has used it. */
+    int find(String name) {
+        return symbols.find(name);
+    }
+
+    String nameOf(int index) {
+        return symbols.nameOf(index);
+    }
+
+    /** The view of these cells for a program that numbered its globals as {@code names}. */
+    LinkedGlobals link(String[] names) {
+        int[] slots = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            slots[i] = slot(names[i]);
+        }
+        return new LinkedGlobals(this, names, slots);
+    }
+
+    /** The cell's value, or {@link #UNDEFINED}. */
+    Object lookup(int index) {
+        return values[index];
+    }
+
+    /** The number of cells, one per name. */
+    int size() {
+        return symbols.size();
+    }
+
+    /** Defines the cell, returning false if it already holds a variable that can't be replaced. */
+    boolean defineCell(int index, Object value) {
+        if (values[index] != UNDEFINED && !redeclarable) return false;
+        values[index] = value;
+        return true;
+    }
+
+    /** Stores into the cell whether or not it is defined; {@link #UNDEFINED} undefines it. */
+    void storeCell(int index, Object value) {
+        values[index] = value;
+    }
+
+    private void grow(int index) {
+        int length = values.length;
+        values = Arrays.copyOf(values, Math.max(index + 1, length * 2));
+        Arrays.fill(values, length, values.length, UNDEFINED);
+    }
+
+    /** Stores into a defined cell, returning false if the variable was never defined. */
+    boolean assignCell(int index, Object value) {
+        if (values[index] == UNDEFINED) return false;
+        values[index] = value;
+        return true;
+    }
+}
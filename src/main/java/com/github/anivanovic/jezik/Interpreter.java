@@ -1,49 +1,81 @@
 package com.github.anivanovic.jezik;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-  Environment globals = new Environment();
-  private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
-
-  {
-    globals.define(new Token(null, "clock", "clock", 0), new LoxCallable() {
-      @Override
-      public int arity() {
-        return 0;
-      }
 
-      @Override
-      public Object call(Interpreter interpreter, List<Object> args) {
-        return ((double)System.currentTimeMillis() / 1000.0);
-      }
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
 
-      @Override
-      public String toString() {
-        return "<native fn>";
-      }
-    });
+  /** Thrown when a node speculating on a numeric result produces something else. */
+  private static final class UnexpectedResult extends RuntimeException {
+    final Object result;
+
+    UnexpectedResult(Object result) {
+      super(null, null, false, false);
+      this.result = result;
+    }
   }
 
-  void interpret(List<Stmt> statements) {
+  private final Context context;
+  // The globals of the program whose code is running; functions bring their own.
+  LinkedGlobals globals = null;
+  private Environment environment = null;
+  // Cells captured by the function currently executing.
+  private Cell[] upvalues = null;
+  private Object returnValue = null;
+  private LoxFunction tailCallee = null;
+  // Arguments of the last tail call: up to three in tailArg0 to tailArg2, more in tailArgs.
+  private int tailArgc = 0;
+  private Object tailArg0 = null;
+  private Object tailArg1 = null;
+  private Object tailArg2 = null;
+  private Object[] tailArgs = null;
+  // Lox calls are Java calls here, so the depth is bounded before the thread stack runs out.
+  private final int maxDepth;
+  private int depth = 0;
+  // Calls look for an interrupt only every so often; the check shows up in call-heavy code.
+  private int callsSinceCheck = 0;
+  // Whether hot functions are promoted to compiled code, and the function being walked.
+  final boolean tiered;
+  private LoxFunction function = null;
+  // Shadow stack for --profile, or null.
+  final Profiler profiler;
+
+  Interpreter() {
+    this(Context.standard(), VM.DEFAULT_MAX_FRAMES, false, null);
+  }
+
+  Interpreter(Context context, int maxDepth, boolean tiered, Profiler profiler) {
+    this.context = context;
+    this.maxDepth = maxDepth;
+    this.tiered = tiered;
+    this.profiler = profiler;
+  }
+
+  void interpret(List<Stmt> statements, LinkedGlobals globals) {
+    this.globals = globals;
     try {
       for (Stmt statement : statements) {
         execute(statement);
       }
     } catch (RuntimeError e) {
-      Lox.runtimeError(e);
+      context.errors.runtimeError(e);
     }
   }
 
-  private void execute(Stmt statement) {
-    statement.accept(this);
+  void interpret(CompiledCode script, LinkedGlobals globals) {
+    try {
+      run(script, globals, LoxCallable.NO_ARGS);
+    } catch (RuntimeError e) {
+      context.errors.runtimeError(e);
+    }
+  }
+
+  private Completion execute(Stmt statement) {
+    if (Metrics.ENABLED) Metrics.statements.increment();
+    if (profiler != null) profiler.line(statement.line);
+    return statement.accept(this);
   }
 
-  private String stringify(Object val) {
+  static String stringify(Object val) {
     if (val == null) {
       return "nil";
     }
@@ -61,56 +93,171 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
-    Object left = evaluate(expr.left);
-    Object right = evaluate(expr.right);
-
     switch (expr.operator.type) {
       case PLUS:
-        if (left instanceof Double && right instanceof Double) {
-          return (double) left + (double) right;
-        }
-        if (left instanceof String && right instanceof String) {
-          return left + (String) right;
-        }
-
-        throw new RuntimeError(expr.operator, "Operands must be numbers or strings.");
+        if (expr.numericLeft && expr.numericRight) return arithmetic(expr);
+        return add(expr);
       case MINUS:
-        checkNumberOperand(expr.operator, left, right);
-        return (double) left - (double) right;
       case STAR:
-        checkNumberOperand(expr.operator, left, right);
-        return (double) left * (double) right;
       case SLASH:
-        checkNumberOperand(expr.operator, left, right);
-        return (double) left / (double) right;
+        return arithmetic(expr);
       case GREATER:
-        checkNumberOperand(expr.operator, left, right);
-        return (double) left > (double) right;
+        return leftNumber(expr) > rightNumber(expr);
       case GREATER_EQUAL:
-        checkNumberOperand(expr.operator, left, right);
-        return (double) left >= (double) right;
+        return leftNumber(expr) >= rightNumber(expr);
       case LESS:
-        checkNumberOperand(expr.operator, left, right);
-        return (double) left < (double) right;
+        return leftNumber(expr) < rightNumber(expr);
       case LESS_EQUAL:
-        checkNumberOperand(expr.operator, left, right);
-        return (double) left <= (double) right;
+        return leftNumber(expr) <= rightNumber(expr);
       case EQUAL_EQUAL:
-        checkNumberOperand(expr.operator, left, right);
-        return isEqual(left, right);
+        return Double.compare(leftNumber(expr), rightNumber(expr)) == 0;
       case BANG_EQUAL:
-        checkNumberOperand(expr.operator, left, right);
-        return !isEqual(left, right);
+        return Double.compare(leftNumber(expr), rightNumber(expr)) != 0;
     }
 
     // UNREACHABLE
     return null;
   }
 
-  private boolean isEqual(Object left, Object right) {
-    if (left == null && right == null) return true;
-    if (left == null) return false;
-    return left.equals(right);
+  private Object add(Expr.Binary expr) {
+    switch (expr.state) {
+      case NUMBER_ADD:
+        try {
+          return numberAdd(expr);
+        } catch (UnexpectedResult e) {
+          return e.result;
+        }
+      case STRING_CONCAT: {
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+        if (left instanceof String && right instanceof String) {
+          return left + (String) right;
+        }
+        expr.state = Specialization.GENERIC;
+        return genericAdd(expr, left, right);
+      }
+      case UNINITIALIZED: {
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+        if (left instanceof Double && right instanceof Double) {
+          expr.state = Specialization.NUMBER_ADD;
+        } else if (left instanceof String && right instanceof String) {
+          expr.state = Specialization.STRING_CONCAT;
+        } else {
+          expr.state = Specialization.GENERIC;
+        }
+        return genericAdd(expr, left, right);
+      }
+      default:
+        return genericAdd(expr, evaluate(expr.left), evaluate(expr.right));
+    }
+  }
+
+  private Object genericAdd(Expr.Binary expr, Object left, Object right) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left + (double) right;
+    }
+    if (left instanceof String && right instanceof String) {
+      return left + (String) right;
+    }
+
+    throw new RuntimeError(expr.operator, "Operands must be numbers or strings.");
+  }
+
+  /**
+   * A '+' that has only seen numbers so far. Operands are evaluated unboxed where they
+   * speculate on numbers too; the first non-number rewrites the node to the generic form.
+   */
+  private double numberAdd(Expr.Binary expr) {
+    double left;
+    try {
+      left = speculateNumber(expr.left);
+    } catch (UnexpectedResult e) {
+      expr.state = Specialization.GENERIC;
+      throw new UnexpectedResult(genericAdd(expr, e.result, evaluate(expr.right)));
+    }
+    try {
+      return left + speculateNumber(expr.right);
+    } catch (UnexpectedResult e) {
+      expr.state = Specialization.GENERIC;
+      throw new UnexpectedResult(genericAdd(expr, left, e.result));
+    }
+  }
+
+  /**
+   * Evaluates an expression expected to produce a number. Throws {@link UnexpectedResult}
+   * carrying the actual value when it does not.
+   */
+  private double speculateNumber(Expr expr) {
+    if (expr instanceof Expr.Binary && ((Expr.Binary) expr).state == Specialization.NUMBER_ADD) {
+      return numberAdd((Expr.Binary) expr);
+    }
+
+    Object val = evaluate(expr);
+    if (val instanceof Double) return (double) val;
+    throw new UnexpectedResult(val);
+  }
+
+  /**
+   * Evaluates an expression the resolver proved numeric straight to a double, so nested
+   * arithmetic only boxes its final result.
+   */
+  private double evaluateNumber(Expr expr) {
+    if (expr instanceof Expr.Binary) return arithmetic((Expr.Binary) expr);
+    if (expr instanceof Expr.Unary) return negate((Expr.Unary) expr);
+    if (expr instanceof Expr.Grouping) return evaluateNumber(((Expr.Grouping) expr).expression);
+
+    return (double) evaluate(expr);
+  }
+
+  private double arithmetic(Expr.Binary expr) {
+    double left = leftNumber(expr);
+    double right = rightNumber(expr);
+    switch (expr.operator.type) {
+      case PLUS:
+        return left + right;
+      case MINUS:
+        return left - right;
+      case STAR:
+        return left * right;
+      case SLASH:
+        return left / right;
+    }
+
+    // UNREACHABLE
+    return 0;
+  }
+
+  private double negate(Expr.Unary expr) {
+    if (expr.numericRight) return -evaluateNumber(expr.right);
+
+    try {
+      return -speculateNumber(expr.right);
+    } catch (UnexpectedResult e) {
+      throw new RuntimeError(expr.operator, "Operand must be a number.");
+    }
+  }
+
+  private double leftNumber(Expr.Binary expr) {
+    if (expr.numericLeft) return evaluateNumber(expr.left);
+
+    try {
+      return speculateNumber(expr.left);
+    } catch (UnexpectedResult e) {
+      // Both operands are evaluated before their types are checked.
+      evaluate(expr.right);
+      throw new RuntimeError(expr.operator, "Operands must be a numbers.");
+    }
+  }
+
+  private double rightNumber(Expr.Binary expr) {
+    if (expr.numericRight) return evaluateNumber(expr.right);
+
+    try {
+      return speculateNumber(expr.right);
+    } catch (UnexpectedResult e) {
+      throw new RuntimeError(expr.operator, "Operands must be a numbers.");
+    }
   }
 
   @Override
@@ -125,17 +272,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitUnaryExpr(Expr.Unary expr) {
+    if (expr.operator.type == TokenType.MINUS) return negate(expr);
+
     Object val = evaluate(expr.right);
-    switch (expr.operator.type) {
-      case MINUS:
-        checkNumberOperand(expr.operator, val);
-        return -(double) val;
-      case BANG:
-        return !isTruthy(val);
+    switch (expr.state) {
+      case BOOLEAN_NOT:
+        if (val instanceof Boolean) return !(boolean) val;
+        expr.state = Specialization.GENERIC;
+        break;
+      case UNINITIALIZED:
+        expr.state = val instanceof Boolean ? Specialization.BOOLEAN_NOT : Specialization.GENERIC;
+        break;
     }
-
-    // UNREACHABLE
-    return null;
+    return !isTruthy(val);
   }
 
   @Override
@@ -150,21 +299,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return evaluate(expr.right);
   }
 
-  private void checkNumberOperand(Token operator, Object val) {
-    if (val instanceof Double) return;
-    throw new RuntimeError(operator, "Operand must be a number.");
-  }
-
-  private void checkNumberOperand(Token operator, Object left, Object right) {
-    if (left instanceof Double && right instanceof Double) return;
-    throw new RuntimeError(operator, "Operands must be a numbers.");
-  }
-
   private Object evaluate(Expr expr) {
     return expr.accept(this);
   }
 
-  private boolean isTruthy(Object val) {
+  static boolean isTruthy(Object val) {
     if (val == null) return false;
     if (val instanceof Boolean) return (boolean) val;
 
@@ -172,80 +311,212 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   @Override
-  public Void visitExpressionStmt(Stmt.Expression stmt) {
+  public Completion visitExpressionStmt(Stmt.Expression stmt) {
     evaluate(stmt.expression);
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitPrintStmt(Stmt.Print stmt) {
+  public Completion visitPrintStmt(Stmt.Print stmt) {
     Object val = evaluate(stmt.expression);
-    System.out.println(stringify(val));
-    return null;
+    print(val);
+    return Completion.NORMAL;
+  }
+
+  /** Writes a value to the run's output; compiled code prints through here too. */
+  void print(Object val) {
+    context.out.println(stringify(val));
   }
 
   @Override
-  public Void visitVarStmt(Stmt.Var stmt) {
+  public Completion visitVarStmt(Stmt.Var stmt) {
     Object val = null;
     if (stmt.initializer != null) {
       val = evaluate(stmt.initializer);
     }
-    environment.define(stmt.name, val);
-    return null;
+    if (stmt.slot == -1) {
+      globals.define(stmt.name, stmt.global, val);
+    } else {
+      environment.define(stmt.slot, stmt.boxed ? new Cell(val) : val);
+    }
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
-    return null;
+  public Completion visitBlockStmt(Stmt.Block stmt) {
+    if (stmt.frameSize == 0) {
+      // Nothing declared, so the resolver gave the block no scope of its own.
+      for (Stmt statement : stmt.statements) {
+        Completion completion = execute(statement);
+        if (completion != Completion.NORMAL) return completion;
+      }
+      return Completion.NORMAL;
+    }
+    return executeBlock(stmt.statements, new Environment(environment, stmt.frameSize));
   }
 
   @Override
-  public Void visitIfStmt(Stmt.If stmt) {
+  public Completion visitIfStmt(Stmt.If stmt) {
     Object val = stmt.condition.accept(this);
     if (isTruthy(val)) {
-      execute(stmt.thenBranch);
+      return execute(stmt.thenBranch);
     } else if (stmt.elseBranch != null) {
-      execute(stmt.elseBranch);
+      return execute(stmt.elseBranch);
     }
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitWhileStmt(Stmt.While stmt) {
+  public Completion visitWhileStmt(Stmt.While stmt) {
     while (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.body);
+      Completion completion = execute(stmt.body);
+      if (completion != Completion.NORMAL) return completion;
+      if (tiered && function != null) function.function.tiering.backEdge();
+      LoxInterruptedException.check();
     }
 
-    return null;
+    return Completion.NORMAL;
+  }
+
+  /**
+   * Runs a function body in its own frame, with the cells its closure captured and the globals
+   * of the program that declared it.
+   */
+  Completion executeFunction(LoxFunction function, List<Stmt> body, Environment frame,
+      Cell[] upvalues, LinkedGlobals globals) {
+    LoxFunction previousFunction = this.function;
+    Cell[] previous = this.upvalues;
+    LinkedGlobals previousGlobals = this.globals;
+    try {
+      this.function = function;
+      this.upvalues = upvalues;
+      this.globals = globals;
+      return executeBlock(body, frame);
+    } finally {
+      this.function = previousFunction;
+      this.upvalues = previous;
+      this.globals = previousGlobals;
+    }
   }
 
-  void executeBlock(List<Stmt> statements, Environment environment) {
+  /** Runs compiled code, which reads its globals from the interpreter, with the given ones. */
+  Object run(CompiledCode code, LinkedGlobals globals, Object[] args) {
+    LinkedGlobals previous = this.globals;
+    try {
+      this.globals = globals;
+      return code.run(this, args);
+    } finally {
+      this.globals = previous;
+    }
+  }
+
+  Completion executeBlock(List<Stmt> statements, Environment environment) {
     Environment previous = this.environment;
     try {
       this.environment = environment;
       for (Stmt statement : statements) {
-        statement.accept(this);
+        Completion completion = execute(statement);
+        if (completion != Completion.NORMAL) return completion;
       }
-
+      return Completion.NORMAL;
     } finally {
       this.environment = previous;
     }
   }
 
+  /** Hands the function called by the last tail call to the returning call, clearing it. */
+  LoxFunction takeTailCallee() {
+    LoxFunction callee = tailCallee;
+    tailCallee = null;
+    return callee;
+  }
+
+  /** Binds the arguments of the last tail call in a new frame for its callee, clearing them. */
+  Environment takeTailFrame(LoxFunction callee) {
+    Environment frame = tailArgs != null
+        ? callee.frame(tailArgs)
+        : callee.frame(tailArgc, tailArg0, tailArg1, tailArg2);
+    clearTailArgs();
+    return frame;
+  }
+
+  /** Hands the arguments of the last tail call over in an array, clearing them. */
+  Object[] takeTailArgs() {
+    Object[] args = tailArgs;
+    if (args == null) {
+      switch (tailArgc) {
+        case 0:
+          args = LoxCallable.NO_ARGS;
+          break;
+        case 1:
+          args = new Object[] {tailArg0};
+          break;
+        case 2:
+          args = new Object[] {tailArg0, tailArg1};
+          break;
+        default:
+          args = new Object[] {tailArg0, tailArg1, tailArg2};
+          break;
+      }
+    }
+    clearTailArgs();
+    return args;
+  }
+
+  private void clearTailArgs() {
+    tailArg0 = null;
+    tailArg1 = null;
+    tailArg2 = null;
+    tailArgs = null;
+  }
+
+  /** Hands the value of the last executed return statement to the returning call. */
+  Object takeReturnValue() {
+    Object value = returnValue;
+    returnValue = null;
+    return value;
+  }
+
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-    return lookUpVar(expr.name, expr);
+    switch (expr.state) {
+      case LOCAL_SLOT:
+        return environment.slots[expr.slot];
+      case ENCLOSING_SLOT:
+        return environment.getAt(expr.depth, expr.slot);
+      case UPVALUE:
+        return upvalues[expr.upvalue].value;
+      case BOXED_SLOT:
+        return ((Cell) environment.getAt(expr.depth, expr.slot)).value;
+      case GLOBAL:
+        return globals.get(expr.name, expr.global);
+      default:
+        if (expr.upvalue != -1) {
+          expr.state = Specialization.UPVALUE;
+        } else if (expr.depth == -1) {
+          expr.state = Specialization.GLOBAL;
+        } else if (expr.boxed) {
+          expr.state = Specialization.BOXED_SLOT;
+        } else if (expr.depth == 0) {
+          expr.state = Specialization.LOCAL_SLOT;
+        } else {
+          expr.state = Specialization.ENCLOSING_SLOT;
+        }
+        return lookUpVar(expr);
+    }
   }
 
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
     Object val = evaluate(expr.value);
-    Integer dist = locals.get(expr);
-    if (dist != null) {
-      environment.assignAt(dist, expr.name, val);
+    if (expr.upvalue != -1) {
+      upvalues[expr.upvalue].value = val;
+    } else if (expr.boxed) {
+      ((Cell) environment.getAt(expr.depth, expr.slot)).value = val;
+    } else if (expr.depth != -1) {
+      environment.assignAt(expr.depth, expr.slot, val);
     } else {
-      return globals.get(expr.name);
+      globals.assign(expr.name, expr.global, val);
     }
     return val;
   }
@@ -253,47 +524,221 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   @Override
   public Object visitCallExpr(Expr.Call expr) {
     Object fn = evaluate(expr.callee);
+    List<Expr> args = expr.args;
+    // Up to three arguments are passed as they are, so most calls allocate no array.
+    switch (args.size()) {
+      case 0:
+        return invoke(expr.paren, checkCall(expr, fn, 0), 0, null, null, null, null);
+      case 1: {
+        Object arg0 = evaluate(args.get(0));
+        return invoke(expr.paren, checkCall(expr, fn, 1), 1, arg0, null, null, null);
+      }
+      case 2: {
+        Object arg0 = evaluate(args.get(0));
+        Object arg1 = evaluate(args.get(1));
+        return invoke(expr.paren, checkCall(expr, fn, 2), 2, arg0, arg1, null, null);
+      }
+      case 3: {
+        Object arg0 = evaluate(args.get(0));
+        Object arg1 = evaluate(args.get(1));
+        Object arg2 = evaluate(args.get(2));
+        return invoke(expr.paren, checkCall(expr, fn, 3), 3, arg0, arg1, arg2, null);
+      }
+      default: {
+        Object[] values = evaluateArgs(expr);
+        return invoke(
+            expr.paren, checkCall(expr, fn, values.length), values.length, null, null, null, values);
+      }
+    }
+  }
+
+  /** Calls {@code fn} for compiled code, with the checks and limits of a call expression. */
+  Object call(Token paren, Object fn, Object[] args) {
+    return invoke(paren, checkCallable(paren, fn, args.length), args);
+  }
+
+  Object call0(Token paren, Object fn) {
+    return invoke(paren, checkCallable(paren, fn, 0), 0, null, null, null, null);
+  }
+
+  Object call1(Token paren, Object fn, Object arg0) {
+    return invoke(paren, checkCallable(paren, fn, 1), 1, arg0, null, null, null);
+  }
+
+  Object call2(Token paren, Object fn, Object arg0, Object arg1) {
+    return invoke(paren, checkCallable(paren, fn, 2), 2, arg0, arg1, null, null);
+  }
 
-    List<Object> args = new ArrayList<>();
-    for (Expr arg : expr.args) {
-      args.add(evaluate(arg));
+  Object call3(Token paren, Object fn, Object arg0, Object arg1, Object arg2) {
+    return invoke(paren, checkCallable(paren, fn, 3), 3, arg0, arg1, arg2, null);
+  }
+
+  /** Calls with the arguments in an array, as tail calls and Java callers have them. */
+  Object invoke(Token paren, LoxCallable callable, Object[] args) {
+    return invoke(paren, callable, args.length, null, null, null, args);
+  }
+
+  /**
+   * Makes a call within the depth limit. Up to three arguments come in {@code arg0} to
+   * {@code arg2} with {@code args} null; more come in {@code args}.
+   */
+  private Object invoke(Token paren, LoxCallable callable,
+      int argc, Object arg0, Object arg1, Object arg2, Object[] args) {
+    if (depth == maxDepth) {
+      throw new RuntimeError(paren, "Stack overflow.");
+    }
+    if ((++callsSinceCheck & 1023) == 0) LoxInterruptedException.check();
+    depth++;
+    if (profiler != null) profiler.enter(callable, paren.line);
+    LoxEvents.FunctionCall event = Metrics.beginCall();
+    try {
+      return dispatch(callable, this, argc, arg0, arg1, arg2, args);
+    } catch (StackOverflowError e) {
+      // The thread stack can still be smaller than the configured depth needs.
+      throw new RuntimeError(paren, "Stack overflow.");
+    } finally {
+      depth--;
+      if (profiler != null) profiler.exit();
+      if (event != null) Metrics.endCall(event, callable);
     }
+  }
 
+  /** Calls the entry point of {@code callable} that takes the arguments the way they come. */
+  static Object dispatch(LoxCallable callable, Interpreter interpreter,
+      int argc, Object arg0, Object arg1, Object arg2, Object[] args) {
+    if (args != null) return callable.call(interpreter, args);
+    switch (argc) {
+      case 0:
+        return callable.call0(interpreter);
+      case 1:
+        return callable.call1(interpreter, arg0);
+      case 2:
+        return callable.call2(interpreter, arg0, arg1);
+      default:
+        return callable.call3(interpreter, arg0, arg1, arg2);
+    }
+  }
+
+  private Object[] evaluateArgs(Expr.Call expr) {
+    Object[] args = new Object[expr.args.size()];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = evaluate(expr.args.get(i));
+    }
+    return args;
+  }
+
+  /** Makes sure {@code fn} can be called with {@code argc} arguments and updates the call site. */
+  private LoxCallable checkCall(Expr.Call expr, Object fn, int argc) {
+    // Functions of the cached declaration have already passed the arity check here. The site
+    // caches the declaration rather than the function, which belongs to one run of the tree.
+    if (expr.state == Specialization.MONOMORPHIC_CALL
+        && fn instanceof LoxFunction && ((LoxFunction) fn).function == expr.target) {
+      return (LoxFunction) fn;
+    }
+
+    LoxCallable fnCallable = checkCallable(expr.paren, fn, argc);
+    if (expr.state == Specialization.UNINITIALIZED) {
+      if (fnCallable instanceof LoxFunction) {
+        expr.state = Specialization.MONOMORPHIC_CALL;
+        expr.target = ((LoxFunction) fnCallable).function;
+      } else {
+        expr.state = Specialization.GENERIC;
+      }
+    } else if (expr.state == Specialization.MONOMORPHIC_CALL) {
+      expr.state = Specialization.GENERIC;
+      expr.target = null;
+    }
+    return fnCallable;
+  }
+
+  static LoxCallable checkCallable(Token paren, Object fn, int argc) {
     if (!(fn instanceof LoxCallable)) {
-      throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+      throw new RuntimeError(paren, "Can only call functions and classes.");
     }
 
-    LoxCallable fnCallable = (LoxCallable) fn;
-    if (fnCallable.arity() != args.size()) {
+    LoxCallable callable = (LoxCallable) fn;
+    if (callable.arity() != argc) {
       throw new RuntimeError(
-          expr.paren, "Expected " + fnCallable.arity() + " arguments but got " + args.size() + ".");
+          paren, "Expected " + callable.arity() + " arguments but got " + argc + ".");
     }
-    return fnCallable.call(this, args);
+    return callable;
   }
 
   @Override
-  public Void visitFunctionStmt(Stmt.Function stmt) {
-    LoxFunction function = new LoxFunction(stmt, environment);
-    environment.define(stmt.name, function);
-    return null;
+  public Completion visitFunctionStmt(Stmt.Function stmt) {
+    if (stmt.slot == -1) {
+      globals.define(stmt.name, stmt.global, new LoxFunction(stmt, capture(stmt), globals));
+    } else if (stmt.boxed) {
+      // The cell has to exist before the closure captures it when the function refers to itself.
+      Cell cell = new Cell(null);
+      environment.define(stmt.slot, cell);
+      cell.value = new LoxFunction(stmt, capture(stmt), globals);
+    } else {
+      environment.define(stmt.slot, new LoxFunction(stmt, capture(stmt), globals));
+    }
+    return Completion.NORMAL;
   }
 
-  @Override
-  public Void visitReturnStmt(Stmt.Return stmt) {
-    if (stmt.value == null) return null;
-    throw new Return(evaluate(stmt.value));
+  /** Collects the cells a new closure of {@code stmt} shares with the code around it. */
+  private Cell[] capture(Stmt.Function stmt) {
+    Cell[] cells = new Cell[stmt.captures.length];
+    for (int i = 0; i < cells.length; i++) {
+      Capture capture = stmt.captures[i];
+      cells[i] = capture.local
+          ? (Cell) environment.getAt(capture.depth, capture.index)
+          : upvalues[capture.index];
+    }
+    return cells;
   }
 
-  public void resolve(Expr expr, int i) {
-    locals.put(expr, i);
+  @Override
+  public Completion visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.tailCall) {
+      Expr.Call call = (Expr.Call) stmt.value;
+      Object fn = evaluate(call.callee);
+      // As in visitCallExpr, up to three arguments are passed without an array.
+      int argc = call.args.size();
+      Object arg0 = null;
+      Object arg1 = null;
+      Object arg2 = null;
+      Object[] args = null;
+      if (argc > 3) {
+        args = evaluateArgs(call);
+      } else {
+        if (argc > 0) arg0 = evaluate(call.args.get(0));
+        if (argc > 1) arg1 = evaluate(call.args.get(1));
+        if (argc > 2) arg2 = evaluate(call.args.get(2));
+      }
+      LoxCallable callable = checkCall(call, fn, argc);
+      if (callable instanceof LoxFunction) {
+        // Leave the call to the caller's loop so this frame is gone before the callee runs.
+        tailCallee = (LoxFunction) callable;
+        tailArgc = argc;
+        tailArg0 = arg0;
+        tailArg1 = arg1;
+        tailArg2 = arg2;
+        tailArgs = args;
+        return Completion.TAIL_CALL;
+      }
+      returnValue = invoke(call.paren, callable, argc, arg0, arg1, arg2, args);
+      return Completion.RETURN;
+    }
+
+    Object value = null;
+    if (stmt.value != null) value = evaluate(stmt.value);
+    returnValue = value;
+    return Completion.RETURN;
   }
 
-  private Object lookUpVar(Token name, Expr.Variable expr) {
-    Integer dist = locals.get(expr);
-    if (dist != null) {
-      return environment.getAt(name, dist);
+  private Object lookUpVar(Expr.Variable expr) {
+    if (expr.upvalue != -1) {
+      return upvalues[expr.upvalue].value;
+    } else if (expr.boxed) {
+      return ((Cell) environment.getAt(expr.depth, expr.slot)).value;
+    } else if (expr.depth != -1) {
+      return environment.getAt(expr.depth, expr.slot);
     } else {
-      return globals.get(name);
+      return globals.get(expr.name, expr.global);
     }
   }
 }
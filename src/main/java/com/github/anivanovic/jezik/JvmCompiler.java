@@ -0,0 +1,804 @@
+package com.github.anivanovic.jezik;
+
+import static com.github.anivanovic.jezik.ClassWriter.MethodWriter.*;
+
+import com.github.anivanovic.jezik.ClassWriter.Label;
+import com.github.anivanovic.jezik.ClassWriter.MethodWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles resolved Lox code into JVM classes, defined as hidden classes next to the
+ * interpreter so the JIT optimizes Lox code directly. Lox locals become JVM locals, and those
+ * that provably only ever hold numbers are kept as unboxed doubles. Everything else goes
+ * through {@link JvmRuntime} and the interpreter's globals and calls, so compiled and walked
+ * code behave the same and can call each other.
+ *
+ * <p>A function body can also be compiled speculating that some parameters are numbers. It
+ * checks its arguments on entry and returns {@link CompiledCode#DEOPTIMIZE} if one is not, so
+ * the call can be run by the interpreter instead.
+ *
+ * <p>Closures are not supported: code that declares a local function or uses a captured
+ * variable is refused, and keeps running on the tree engine.
+ */
+class JvmCompiler implements Expr.Visitor<JvmCompiler.Kind>, Stmt.Visitor<Void> {
+
+  /** Thrown for code this compiler does not handle. */
+  static class Unsupported extends RuntimeException {
+    Unsupported(String reason) {
+      super(reason, null, false, false);
+    }
+  }
+
+  /** What an expression leaves on the JVM stack. */
+  enum Kind {
+    OBJECT,
+    NUMBER,
+    BOOLEAN,
+  }
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  private static final String PACKAGE = "com/github/anivanovic/jezik/";
+  private static final String OBJECT = "java/lang/Object";
+  private static final String OBJECTS = "[L" + OBJECT + ";";
+  private static final String INTERPRETER = PACKAGE + "Interpreter";
+  private static final String GLOBALS = PACKAGE + "LinkedGlobals";
+  private static final String FUNCTION = PACKAGE + "Stmt$Function";
+  private static final String CODE = PACKAGE + "CompiledCode";
+  private static final String TOKEN = PACKAGE + "Token";
+  private static final String RUNTIME = PACKAGE + "JvmRuntime";
+  private static final String DOUBLE = "java/lang/Double";
+
+  private static final String RUN = "(L" + INTERPRETER + ";" + OBJECTS + ")L" + OBJECT + ";";
+  private static final String OPERATOR = "(L" + OBJECT + ";L" + OBJECT + ";L" + TOKEN + ";)";
+  private static final String GLOBAL = "(L" + OBJECT + ";L" + GLOBALS + ";L" + TOKEN + ";I)";
+  private static final String CALL = "(L" + TOKEN + ";L" + OBJECT + ";" + OBJECTS + ")L" + OBJECT + ";";
+
+  // Fixed locals of the generated run method.
+  private static final int THIS = 0;
+  private static final int INTERPRETER_LOCAL = 1;
+  private static final int ARGS = 2;
+
+  private final ClassWriter classWriter;
+  private final MethodWriter code;
+  private final boolean inFunction;
+  private final int globals;
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+
+  // Declarations visible at the current point, a Stmt.Var or the Token of a parameter.
+  private final Deque<Map<String, Object>> scopes = new ArrayDeque<>();
+  private final Map<Object, Integer> locals = new IdentityHashMap<>();
+  // Local vars and parameters only ever holding numbers.
+  private final Set<Object> numbers = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  private JvmCompiler(String name, boolean inFunction) {
+    this.inFunction = inFunction;
+    classWriter = new ClassWriter(PACKAGE + "Compiled$" + name, OBJECT, PACKAGE + "CompiledCode");
+    classWriter.field(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_FINAL, "constants", "[L" + OBJECT + ";");
+
+    MethodWriter init = classWriter.method(0, "<init>", "([L" + OBJECT + ";)V", 2);
+    init.local(ALOAD, THIS, 1);
+    init.ref(INVOKESPECIAL, classWriter.methodRef(OBJECT, "<init>", "()V"), -1);
+    init.local(ALOAD, THIS, 1);
+    init.local(ALOAD, 1, 1);
+    init.ref(PUTFIELD, classWriter.fieldRef(classWriter.thisName(), "constants", "[L" + OBJECT + ";"), -2);
+    init.insn(RETURN, 0);
+
+    code = classWriter.method(ClassWriter.ACC_PUBLIC, "run", RUN, 3);
+    globals = code.newLocal(1);
+    code.local(ALOAD, INTERPRETER_LOCAL, 1);
+    code.ref(GETFIELD, classWriter.fieldRef(INTERPRETER, "globals", "L" + GLOBALS + ";"), 0);
+    code.local(ASTORE, globals, -1);
+  }
+
+  /**
+   * Compiles the body of a function without captures, or returns null if it is not supported.
+   * Parameters flagged in {@code numberParams}, when given, are speculated to be numbers.
+   */
+  static CompiledCode compileBody(Stmt.Function function, boolean[] numberParams) {
+    if (function.captures.length > 0) return null;
+
+    try {
+      JvmCompiler compiler = new JvmCompiler(function.name.lexem, true);
+      Map<String, Object> scope = new HashMap<>();
+      for (int i = 0; i < function.variables.size(); i++) {
+        Token parameter = function.variables.get(i);
+        scope.put(parameter.lexem, parameter);
+        if (numberParams != null && numberParams[i]) compiler.numbers.add(parameter);
+      }
+      return compiler.finish(function.variables, scope, function.body);
+    } catch (Unsupported e) {
+      return null;
+    }
+  }
+
+  /** Compiles a whole program, or returns null if any of its top-level code is not supported. */
+  static CompiledCode compileScript(List<Stmt> statements) {
+    try {
+      return new JvmCompiler("script", false).finish(List.of(), null, statements);
+    } catch (Unsupported e) {
+      return null;
+    }
+  }
+
+  /**
+   * Compiles {@code body}, which runs in {@code scope} with {@code parameters} bound to the
+   * arguments, or at the top level when the scope is null.
+   */
+  private CompiledCode finish(List<Token> parameters, Map<String, Object> scope, List<Stmt> body) {
+    new NumberInference().infer(scope, body);
+
+    for (int i = 0; i < parameters.size(); i++) {
+      parameter(i, parameters.get(i));
+    }
+    if (scope != null) scopes.push(scope);
+    for (Stmt statement : body) {
+      statement.accept(this);
+    }
+    code.insn(ACONST_NULL, 1);
+    code.insn(ARETURN, -1);
+
+    byte[] bytes = classWriter.toByteArray();
+    try {
+      MethodHandles.Lookup lookup = LOOKUP.defineHiddenClass(bytes, true);
+      MethodHandle constructor = lookup.findConstructor(
+          lookup.lookupClass(), MethodType.methodType(void.class, Object[].class));
+      return (CompiledCode) constructor.invoke(constants.toArray());
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Copies an argument into its local, unboxing it behind a guard if it is speculated numeric. */
+  private void parameter(int index, Token parameter) {
+    code.local(ALOAD, ARGS, 1);
+    code.push(index);
+    code.insn(AALOAD, -1);
+    if (!numbers.contains(parameter)) {
+      int local = code.newLocal(1);
+      code.local(ASTORE, local, -1);
+      locals.put(parameter, local);
+      return;
+    }
+
+    Label number = new Label();
+    code.insn(DUP, 1);
+    code.ref(INSTANCEOF, classWriter.classRef(DOUBLE), 0);
+    code.jump(IFNE, number);
+    code.insn(POP, -1);
+    code.ref(GETSTATIC,
+        classWriter.fieldRef(PACKAGE + "CompiledCode", "DEOPTIMIZE", "L" + OBJECT + ";"), 1);
+    code.insn(ARETURN, -1);
+    code.unreachable();
+    code.mark(number);
+    code.ref(CHECKCAST, classWriter.classRef(DOUBLE), 0);
+    code.ref(INVOKEVIRTUAL, classWriter.methodRef(DOUBLE, "doubleValue", "()D"), 1);
+    int local = code.newLocal(2);
+    code.local(DSTORE, local, -2);
+    locals.put(parameter, local);
+  }
+
+  @Override
+  public Kind visitBinaryExpr(Expr.Binary expr) {
+    boolean numeric = kind(expr.left) == Kind.NUMBER && kind(expr.right) == Kind.NUMBER;
+    if (numeric) {
+      expr.left.accept(this);
+      expr.right.accept(this);
+    } else {
+      object(expr.left);
+      object(expr.right);
+      constant(expr.operator, TOKEN);
+    }
+
+    switch (expr.operator.type) {
+      case PLUS:
+        if (numeric) {
+          code.insn(DADD, -2);
+          return Kind.NUMBER;
+        }
+        invokeRuntime("add", OPERATOR + "L" + OBJECT + ";", -2);
+        return Kind.OBJECT;
+      case MINUS: return arithmetic(numeric, DSUB, "subtract");
+      case STAR: return arithmetic(numeric, DMUL, "multiply");
+      case SLASH: return arithmetic(numeric, DDIV, "divide");
+      case GREATER: return comparison(numeric, DCMPL, IFLE, "greater");
+      case GREATER_EQUAL: return comparison(numeric, DCMPL, IFLT, "greaterEqual");
+      case LESS: return comparison(numeric, DCMPG, IFGE, "less");
+      case LESS_EQUAL: return comparison(numeric, DCMPG, IFGT, "lessEqual");
+      case EQUAL_EQUAL:
+      case BANG_EQUAL: {
+        if (numeric) {
+          code.ref(INVOKESTATIC, classWriter.methodRef(DOUBLE, "compare", "(DD)I"), -3);
+          bool(expr.operator.type == TokenType.EQUAL_EQUAL ? IFNE : IFEQ);
+          return Kind.BOOLEAN;
+        }
+        invokeRuntime("equal", OPERATOR + "Z", -2);
+        if (expr.operator.type == TokenType.BANG_EQUAL) not();
+        return Kind.BOOLEAN;
+      }
+    }
+    throw new Unsupported("operator " + expr.operator.type);
+  }
+
+  private Kind arithmetic(boolean numeric, int opcode, String helper) {
+    if (numeric) {
+      code.insn(opcode, -2);
+    } else {
+      invokeRuntime(helper, OPERATOR + "D", -1);
+    }
+    return Kind.NUMBER;
+  }
+
+  /** Compares two doubles with {@code compare} and leaves a boolean, false when {@code jump} branches. */
+  private Kind comparison(boolean numeric, int compare, int jump, String helper) {
+    if (numeric) {
+      code.insn(compare, -3);
+      bool(jump);
+    } else {
+      invokeRuntime(helper, OPERATOR + "Z", -2);
+    }
+    return Kind.BOOLEAN;
+  }
+
+  /** Turns the int on the stack into a boolean that is false when {@code jump} is taken. */
+  private void bool(int jump) {
+    Label no = new Label();
+    Label end = new Label();
+    code.jump(jump, no);
+    code.insn(ICONST_1, 1);
+    code.jump(GOTO, end);
+    code.unreachable();
+    code.mark(no);
+    code.insn(ICONST_0, 1);
+    code.mark(end);
+  }
+
+  private void not() {
+    code.insn(ICONST_1, 1);
+    code.insn(IXOR, -1);
+  }
+
+  @Override
+  public Kind visitGroupingExpr(Expr.Grouping expr) {
+    return expr.expression.accept(this);
+  }
+
+  @Override
+  public Kind visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+    if (value instanceof Double) {
+      code.ldc(classWriter.doubleConst((double) value), 2);
+      return Kind.NUMBER;
+    }
+    if (value instanceof Boolean) {
+      code.insn((boolean) value ? ICONST_1 : ICONST_0, 1);
+      return Kind.BOOLEAN;
+    }
+    if (value instanceof String) {
+      code.ldc(classWriter.string((String) value), 1);
+    } else {
+      code.insn(ACONST_NULL, 1);
+    }
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitUnaryExpr(Expr.Unary expr) {
+    if (expr.operator.type == TokenType.MINUS) {
+      if (kind(expr.right) == Kind.NUMBER) {
+        number(expr.right);
+        code.insn(DNEG, 0);
+      } else {
+        object(expr.right);
+        constant(expr.operator, TOKEN);
+        invokeRuntime("negate", "(L" + OBJECT + ";L" + TOKEN + ";)D", 0);
+      }
+      return Kind.NUMBER;
+    }
+
+    condition(expr.right);
+    not();
+    return Kind.BOOLEAN;
+  }
+
+  @Override
+  public Kind visitLogicalExpr(Expr.Logical expr) {
+    Label end = new Label();
+    object(expr.left);
+    code.insn(DUP, 1);
+    truthy();
+    code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+    code.insn(POP, -1);
+    object(expr.right);
+    code.mark(end);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitVariableExpr(Expr.Variable expr) {
+    Object declaration = resolve(expr.name, expr.depth, expr.upvalue);
+    if (declaration == null) {
+      code.local(ALOAD, globals, 1);
+      constant(expr.name, TOKEN);
+      code.push(expr.global);
+      code.ref(INVOKEVIRTUAL,
+          classWriter.methodRef(GLOBALS, "get", "(L" + TOKEN + ";I)L" + OBJECT + ";"), -2);
+      return Kind.OBJECT;
+    }
+
+    if (numbers.contains(declaration)) {
+      code.local(DLOAD, locals.get(declaration), 2);
+      return Kind.NUMBER;
+    }
+    code.local(ALOAD, locals.get(declaration), 1);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitAssignExpr(Expr.Assign expr) {
+    Object declaration = resolve(expr.name, expr.depth, expr.upvalue);
+    if (declaration == null) {
+      object(expr.value);
+      code.local(ALOAD, globals, 1);
+      constant(expr.name, TOKEN);
+      code.push(expr.global);
+      invokeRuntime("assign", GLOBAL + "L" + OBJECT + ";", -3);
+      return Kind.OBJECT;
+    }
+
+    if (numbers.contains(declaration)) {
+      number(expr.value);
+      code.insn(DUP2, 2);
+      code.local(DSTORE, locals.get(declaration), -2);
+      return Kind.NUMBER;
+    }
+    object(expr.value);
+    code.insn(DUP, 1);
+    code.local(ASTORE, locals.get(declaration), -1);
+    return Kind.OBJECT;
+  }
+
+  @Override
+  public Kind visitCallExpr(Expr.Call expr) {
+    code.local(ALOAD, INTERPRETER_LOCAL, 1);
+    constant(expr.paren, TOKEN);
+    object(expr.callee);
+    int argc = expr.args.size();
+    if (argc > 3) {
+      arguments(expr.args);
+      code.ref(INVOKEVIRTUAL, classWriter.methodRef(INTERPRETER, "call", CALL), -3);
+      return Kind.OBJECT;
+    }
+
+    // Up to three arguments stay on the stack for the fixed-arity entry points.
+    StringBuilder descriptor = new StringBuilder("(L" + TOKEN + ";L" + OBJECT + ";");
+    for (Expr arg : expr.args) {
+      object(arg);
+      descriptor.append("L" + OBJECT + ";");
+    }
+    descriptor.append(")L" + OBJECT + ";");
+    code.ref(INVOKEVIRTUAL,
+        classWriter.methodRef(INTERPRETER, "call" + argc, descriptor.toString()), -2 - argc);
+    return Kind.OBJECT;
+  }
+
+  private void arguments(List<Expr> args) {
+    code.push(args.size());
+    code.ref(ANEWARRAY, classWriter.classRef(OBJECT), 0);
+    for (int i = 0; i < args.size(); i++) {
+      code.insn(DUP, 1);
+      code.push(i);
+      object(args.get(i));
+      code.insn(AASTORE, -3);
+    }
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    pop(stmt.expression.accept(this));
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    code.local(ALOAD, INTERPRETER_LOCAL, 1);
+    object(stmt.expression);
+    code.ref(INVOKEVIRTUAL, classWriter.methodRef(INTERPRETER, "print", "(L" + OBJECT + ";)V"), -2);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.slot == -1) {
+      if (stmt.initializer == null) {
+        code.insn(ACONST_NULL, 1);
+      } else {
+        object(stmt.initializer);
+      }
+      defineGlobal(stmt.name, stmt.global);
+      return null;
+    }
+    if (stmt.boxed) throw new Unsupported("captured variable");
+
+    int local;
+    if (numbers.contains(stmt)) {
+      number(stmt.initializer);
+      local = code.newLocal(2);
+      code.local(DSTORE, local, -2);
+    } else {
+      if (stmt.initializer == null) {
+        code.insn(ACONST_NULL, 1);
+      } else {
+        object(stmt.initializer);
+      }
+      local = code.newLocal(1);
+      code.local(ASTORE, local, -1);
+    }
+    locals.put(stmt, local);
+    scopes.peek().put(stmt.name.lexem, stmt);
+    return null;
+  }
+
+  private void defineGlobal(Token name, int index) {
+    code.local(ALOAD, globals, 1);
+    constant(name, TOKEN);
+    code.push(index);
+    invokeRuntime("define", GLOBAL + "V", -4);
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    scopes.push(new HashMap<>());
+    for (Stmt statement : stmt.statements) {
+      statement.accept(this);
+    }
+    scopes.pop();
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    Label otherwise = new Label();
+    condition(stmt.condition);
+    code.jump(IFEQ, otherwise);
+    stmt.thenBranch.accept(this);
+    if (stmt.elseBranch == null) {
+      code.mark(otherwise);
+      return null;
+    }
+
+    Label end = new Label();
+    code.jump(GOTO, end);
+    code.unreachable();
+    code.mark(otherwise);
+    stmt.elseBranch.accept(this);
+    code.mark(end);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    Label start = new Label();
+    Label end = new Label();
+    code.mark(start);
+    condition(stmt.condition);
+    code.jump(IFEQ, end);
+    stmt.body.accept(this);
+    code.ref(INVOKESTATIC,
+        classWriter.methodRef(PACKAGE + "LoxInterruptedException", "check", "()V"), 0);
+    code.jump(GOTO, start);
+    code.unreachable();
+    code.mark(end);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    if (inFunction || stmt.slot != -1) throw new Unsupported("local function");
+
+    // Top-level functions have no captures, so one body serves every run of the declaration;
+    // each run makes its own function value over its globals.
+    CompiledCode body = compileBody(stmt, null);
+    constant(stmt, FUNCTION);
+    if (body != null) {
+      constant(body, CODE);
+    } else {
+      code.insn(ACONST_NULL, 1);
+    }
+    code.local(ALOAD, globals, 1);
+    invokeRuntime("function",
+        "(L" + FUNCTION + ";L" + CODE + ";L" + GLOBALS + ";)L" + OBJECT + ";", -2);
+    defineGlobal(stmt.name, stmt.global);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) {
+      code.insn(ACONST_NULL, 1);
+    } else if (stmt.tailCall) {
+      Expr.Call call = (Expr.Call) stmt.value;
+      code.local(ALOAD, INTERPRETER_LOCAL, 1);
+      constant(call.paren, TOKEN);
+      object(call.callee);
+      arguments(call.args);
+      invokeRuntime("tailCall", "(L" + INTERPRETER + ";" + CALL.substring(1), -3);
+    } else {
+      object(stmt.value);
+    }
+    code.insn(ARETURN, -1);
+    code.unreachable();
+    return null;
+  }
+
+  /** The local declaration a name refers to, or null for a global. */
+  private Object resolve(Token name, int depth, int upvalue) {
+    if (upvalue != -1) throw new Unsupported("captured variable");
+
+    Object declaration = lookup(name);
+    if (declaration == null && depth != -1) throw new Unsupported("enclosing variable");
+    return declaration;
+  }
+
+  private Object lookup(Token name) {
+    for (Map<String, Object> scope : scopes) {
+      Object declaration = scope.get(name.lexem);
+      if (declaration != null) return declaration;
+    }
+    return null;
+  }
+
+  /** What {@code expr} compiles to, given the locals currently in scope. */
+  private Kind kind(Expr expr) {
+    if (expr instanceof Expr.Literal) {
+      Object value = ((Expr.Literal) expr).value;
+      if (value instanceof Double) return Kind.NUMBER;
+      if (value instanceof Boolean) return Kind.BOOLEAN;
+      return Kind.OBJECT;
+    }
+    if (expr instanceof Expr.Grouping) return kind(((Expr.Grouping) expr).expression);
+    if (expr instanceof Expr.Unary) {
+      return ((Expr.Unary) expr).operator.type == TokenType.MINUS ? Kind.NUMBER : Kind.BOOLEAN;
+    }
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      switch (binary.operator.type) {
+        case PLUS:
+          return kind(binary.left) == Kind.NUMBER && kind(binary.right) == Kind.NUMBER
+              ? Kind.NUMBER
+              : Kind.OBJECT;
+        case MINUS:
+        case STAR:
+        case SLASH:
+          // These either produce a number or fail.
+          return Kind.NUMBER;
+        default:
+          return Kind.BOOLEAN;
+      }
+    }
+    if (expr instanceof Expr.Variable) {
+      return numbers.contains(lookup(((Expr.Variable) expr).name)) ? Kind.NUMBER : Kind.OBJECT;
+    }
+    if (expr instanceof Expr.Assign) {
+      return numbers.contains(lookup(((Expr.Assign) expr).name)) ? Kind.NUMBER : Kind.OBJECT;
+    }
+    return Kind.OBJECT;
+  }
+
+  /** Compiles an expression the inference proved numeric. */
+  private void number(Expr expr) {
+    if (expr.accept(this) != Kind.NUMBER) throw new IllegalStateException("Expected a number.");
+  }
+
+  /** Compiles an expression to a boxed value, as the interpreter would produce it. */
+  private void object(Expr expr) {
+    switch (expr.accept(this)) {
+      case NUMBER:
+        code.ref(INVOKESTATIC,
+            classWriter.methodRef(DOUBLE, "valueOf", "(D)L" + DOUBLE + ";"), -1);
+        break;
+      case BOOLEAN:
+        code.ref(INVOKESTATIC,
+            classWriter.methodRef("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;"), 0);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /** Compiles an expression to an int that is zero when it is falsey. */
+  private void condition(Expr expr) {
+    switch (expr.accept(this)) {
+      case NUMBER:
+        code.insn(POP2, -2);
+        code.insn(ICONST_1, 1);
+        break;
+      case OBJECT:
+        truthy();
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void truthy() {
+    code.ref(INVOKESTATIC, classWriter.methodRef(INTERPRETER, "isTruthy", "(L" + OBJECT + ";)Z"), 0);
+  }
+
+  private void pop(Kind kind) {
+    code.insn(kind == Kind.NUMBER ? POP2 : POP, kind == Kind.NUMBER ? -2 : -1);
+  }
+
+  private void invokeRuntime(String name, String descriptor, int effect) {
+    code.ref(INVOKESTATIC, classWriter.methodRef(RUNTIME, name, descriptor), effect);
+  }
+
+  /** Loads a constant from the class's array, where values the constant pool can't hold live. */
+  private void constant(Object value, String type) {
+    Integer index = constantIndexes.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantIndexes.put(value, index);
+    }
+    if (index > Short.MAX_VALUE) throw new Unsupported("too many constants");
+
+    code.local(ALOAD, THIS, 1);
+    code.ref(GETFIELD, classWriter.fieldRef(classWriter.thisName(), "constants", "[L" + OBJECT + ";"), 0);
+    code.push(index);
+    code.insn(AALOAD, -1);
+    if (!type.equals(OBJECT)) code.ref(CHECKCAST, classWriter.classRef(type), 0);
+  }
+
+  /**
+   * Finds the local vars that only ever hold numbers. Every var with an initializer starts out
+   * numeric; walks over the code demote those initialized or assigned with anything that may
+   * not be a number, until a walk changes nothing.
+   */
+  private class NumberInference implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Set<Stmt.Var> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean changed;
+
+    void infer(Map<String, Object> scope, List<Stmt> body) {
+      do {
+        changed = false;
+        scopes.clear();
+        if (scope != null) scopes.push(new HashMap<>(scope));
+        for (Stmt statement : body) {
+          statement.accept(this);
+        }
+      } while (changed);
+      scopes.clear();
+    }
+
+    private void demote(Object declaration, Expr value) {
+      if (numbers.contains(declaration) && kind(value) != Kind.NUMBER) {
+        numbers.remove(declaration);
+        changed = true;
+      }
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      expr.left.accept(this);
+      expr.right.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      return expr.expression.accept(this);
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      return expr.right.accept(this);
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      expr.left.accept(this);
+      expr.right.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      expr.value.accept(this);
+      demote(lookup(expr.name), expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      expr.callee.accept(this);
+      for (Expr arg : expr.args) {
+        arg.accept(this);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      return stmt.expression.accept(this);
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      return stmt.expression.accept(this);
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      if (stmt.initializer != null) stmt.initializer.accept(this);
+      if (stmt.slot == -1) return null;
+
+      if (stmt.initializer != null && seen.add(stmt)) numbers.add(stmt);
+      if (stmt.initializer != null) demote(stmt, stmt.initializer);
+      scopes.peek().put(stmt.name.lexem, stmt);
+      return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      scopes.push(new HashMap<>());
+      for (Stmt statement : stmt.statements) {
+        statement.accept(this);
+      }
+      scopes.pop();
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      stmt.condition.accept(this);
+      stmt.thenBranch.accept(this);
+      if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      stmt.condition.accept(this);
+      stmt.body.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      // Bodies are compiled on their own; a local function is refused when it is compiled.
+      if (stmt.slot != -1) scopes.peek().put(stmt.name.lexem, stmt);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      if (stmt.value != null) stmt.value.accept(this);
+      return null;
+    }
+  }
+}
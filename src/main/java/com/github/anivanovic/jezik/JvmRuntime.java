@@ -0,0 +1,89 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * Operations that code compiled by {@link JvmCompiler} or {@link ClosureCompiler} calls when it
+ * cannot prove its operand types. They fail with the same errors as the {@link Interpreter};
+ * both operands are always evaluated before they get here, as they are before the interpreter
+ * checks them.
+ */
+final class JvmRuntime {
+
+  private JvmRuntime() {}
+
+  static Object add(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left + (double) right;
+    }
+    if (left instanceof String && right instanceof String) {
+      return left + (String) right;
+    }
+
+    throw new RuntimeError(operator, "Operands must be numbers or strings.");
+  }
+
+  static double subtract(Object left, Object right, Token operator) {
+    return number(left, operator) - number(right, operator);
+  }
+
+  static double multiply(Object left, Object right, Token operator) {
+    return number(left, operator) * number(right, operator);
+  }
+
+  static double divide(Object left, Object right, Token operator) {
+    return number(left, operator) / number(right, operator);
+  }
+
+  static boolean greater(Object left, Object right, Token operator) {
+    return number(left, operator) > number(right, operator);
+  }
+
+  static boolean greaterEqual(Object left, Object right, Token operator) {
+    return number(left, operator) >= number(right, operator);
+  }
+
+  static boolean less(Object left, Object right, Token operator) {
+    return number(left, operator) < number(right, operator);
+  }
+
+  static boolean lessEqual(Object left, Object right, Token operator) {
+    return number(left, operator) <= number(right, operator);
+  }
+
+  static boolean equal(Object left, Object right, Token operator) {
+    return Double.compare(number(left, operator), number(right, operator)) == 0;
+  }
+
+  static double negate(Object value, Token operator) {
+    if (value instanceof Double) return -(double) value;
+    throw new RuntimeError(operator, "Operand must be a number.");
+  }
+
+  private static double number(Object value, Token operator) {
+    if (value instanceof Double) return (double) value;
+    throw new RuntimeError(operator, "Operands must be a numbers.");
+  }
+
+  static void define(Object value, LinkedGlobals globals, Token name, int index) {
+    globals.define(name, index, value);
+  }
+
+  static Object assign(Object value, LinkedGlobals globals, Token name, int index) {
+    globals.assign(name, index, value);
+    return value;
+  }
+
+  /** The value of a top-level function declaration; its body is walked if it did not compile. */
+  static Object function(Stmt.Function declaration, CompiledCode body, LinkedGlobals globals) {
+    if (body == null) return new LoxFunction(declaration, new Cell[0], globals);
+    return new CompiledFunction(declaration, body, globals);
+  }
+
+  /** A return of a call: Lox functions are left to the caller's loop, natives are called. */
+  static Object tailCall(Interpreter interpreter, Token paren, Object fn, Object[] args) {
+    LoxCallable callable = Interpreter.checkCallable(paren, fn, args.length);
+    if (callable instanceof CompiledFunction || callable instanceof LoxFunction) {
+      return new CompiledFunction.TailCall(callable, args);
+    }
+    return interpreter.invoke(paren, callable, args);
+  }
+}
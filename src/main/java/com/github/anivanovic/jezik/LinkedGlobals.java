@@ -0,0 +1,57 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * A program's view of the {@link Globals} it runs with. The program numbers the globals it uses
+ * from zero, and the view maps each number to the cell for that name. Functions keep the view
+ * of the program that declared them, so they still find their globals when a later program,
+ * such as the next line in the prompt, calls them.
+ */
+final class LinkedGlobals {
+    private final Globals globals;
+    private final String[] names;
+    private final int[] slots;
+
+    LinkedGlobals(Globals globals, String[] names, int[] slots) {
+        this.globals = globals;
+        this.names = names;
+        this.slots = slots;
+    }
+
+    String nameOf(int index) {
+        return names[index];
+    }
+
+    /** The global's value, or {@link Globals#UNDEFINED}. */
+    Object lookup(int index) {
+        return globals.lookup(slots[index]);
+    }
+
+    /** Defines the global, returning false if it is already defined. */
+    boolean defineCell(int index, Object value) {
+        return globals.defineCell(slots[index], value);
+    }
+
+    /** Stores into a defined global, returning false if it was never defined. */
+    boolean assignCell(int index, Object value) {
+        return globals.assignCell(slots[index], value);
+    }
+
+    void define(Token name, int index, Object value) {
+        if (!defineCell(index, value)) {
+            throw new RuntimeError(name, "Variable '" + name.lexem + "' already declared.");
+        }
+    }
+
+    Object get(Token name, int index) {
+        Object value = lookup(index);
+        if (value != Globals.UNDEFINED) return value;
+
+        throw new RuntimeError(name, "Undefined variable '" + name.lexem + "'.");
+    }
+
+    void assign(Token name, int index, Object val) {
+        if (!assignCell(index, val)) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexem + "'.");
+        }
+    }
+}
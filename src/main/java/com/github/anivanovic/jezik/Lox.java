@@ -3,38 +3,212 @@ package com.github.anivanovic.jezik;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class Lox {
 
-    private static boolean hadError = false;
-    private static boolean hadRuntimeError = false;
-    private static final Interpreter interpreter = new Interpreter();
+    // Thread stack reserved per Lox call on the tree engine, where calls recurse in Java.
+    private static final long STACK_BYTES_PER_CALL = 4096;
+
+    private static int maxDepth = VM.DEFAULT_MAX_FRAMES;
+    private static Engine.Kind kind = Engine.Kind.TREE;
+    private static Engine engine;
+    private static AstCache cache = null;
+    private static boolean optimize = false;
+    private static Profiler profiler = null;
+    private static Path profileOutput = null;
+    private static final long PROFILE_INTERVAL_NANOS = 1_000_000;
+    private static final int PROFILE_TOP = 20;
+    // Scripts run at once in batch mode, or 0 to run them one after another.
+    private static int jobs = 0;
+    private static long timeoutMillis = 0;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        List<String> scripts = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--engine=tree")) {
+                kind = Engine.Kind.TREE;
+            } else if (arg.equals("--engine=vm")) {
+                kind = Engine.Kind.VM;
+            } else if (arg.equals("--engine=jvm")) {
+                kind = Engine.Kind.JVM;
+            } else if (arg.equals("--engine=tiered")) {
+                kind = Engine.Kind.TIERED;
+            } else if (arg.equals("--engine=closure")) {
+                kind = Engine.Kind.CLOSURE;
+            } else if (arg.equals("--optimize")) {
+                optimize = true;
+            } else if (arg.equals("--cache")) {
+                cache = new AstCache(Paths.get(System.getProperty("user.home"), ".jlox", "cache"));
+            } else if (arg.startsWith("--cache=")) {
+                cache = new AstCache(Paths.get(arg.substring("--cache=".length())));
+            } else if (arg.startsWith("--max-depth=")) {
+                maxDepth = parsePositive(arg.substring("--max-depth=".length()));
+            } else if (arg.startsWith("--jobs=")) {
+                jobs = parsePositive(arg.substring("--jobs=".length()));
+            } else if (arg.startsWith("--timeout=")) {
+                timeoutMillis = parsePositive(arg.substring("--timeout=".length()));
+            } else if (arg.equals("--profile")) {
+                profileOutput = Paths.get("profile.collapsed");
+            } else if (arg.startsWith("--profile=")) {
+                profileOutput = Paths.get(arg.substring("--profile=".length()));
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                scripts.add(arg);
+            }
+        }
+
+        if (profileOutput != null && !scripts.isEmpty()) {
+            if (kind == Engine.Kind.VM) {
+                System.err.println("--profile is not supported by the vm engine.");
+                System.exit(64);
+            }
+            if (jobs > 1) {
+                System.err.println("--profile can only follow one script at a time.");
+                System.exit(64);
+            }
+            profiler = new Profiler(PROFILE_INTERVAL_NANOS);
+            profiler.start();
+        }
+
+        engine = new Engine(kind, maxDepth, optimize, profiler);
+        if (scripts.size() == 1 && !Files.isDirectory(Paths.get(scripts.get(0)))) {
+            runFile(Paths.get(scripts.get(0)));
+        } else if (!scripts.isEmpty()) {
+            runFiles(scripts);
         } else {
             prompt();
         }
     }
 
-    private static void runFile(String arg) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(arg));
-        run(new String(bytes, Charset.defaultCharset()));
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=tree|vm|jvm|tiered|closure] [--optimize] [--cache[=dir]] [--max-depth=N] [--profile[=file]] [--jobs=N [--timeout=ms]] [script | directory ...]");
+        System.exit(64);
+    }
 
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+    private static int parsePositive(String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) return number;
+        } catch (NumberFormatException e) {
+            // Falls through to the usage message.
+        }
+        usage();
+        return 0;
+    }
+
+    private static void runFile(Path path) throws IOException {
+        ErrorReporter errors = runScript(path);
+        reportProfile();
+
+        if (errors.hadError()) System.exit(65);
+        if (errors.hadRuntimeError()) System.exit(70);
+    }
+
+    /**
+     * Batch mode: runs every script, and every .lox file found under a directory in path
+     * order, each one with fresh globals. Failures don't stop the batch; the exit status
+     * reports the worst failure seen.
+     */
+    private static void runFiles(List<String> args) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        for (String arg : args) {
+            Path path = Paths.get(arg);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.walk(path)) {
+                    paths.addAll(files
+                            .filter(file -> file.toString().endsWith(".lox") && Files.isRegularFile(file))
+                            .sorted()
+                            .collect(Collectors.toList()));
+                }
+            } else {
+                paths.add(path);
+            }
+        }
+
+        if (jobs > 0) {
+            runBatch(paths);
+            return;
+        }
+
+        boolean anyError = false;
+        boolean anyRuntimeError = false;
+        for (Path path : paths) {
+            ErrorReporter errors = runScript(path);
+
+            if (errors.hadError() || errors.hadRuntimeError()) {
+                System.err.println("Failed: " + path);
+            }
+            anyError |= errors.hadError();
+            anyRuntimeError |= errors.hadRuntimeError();
+        }
+
+        reportProfile();
+        if (anyError) System.exit(65);
+        if (anyRuntimeError) System.exit(70);
+    }
+
+    /**
+     * Runs the scripts {@code jobs} at a time with {@link BatchRunner}, then prints their
+     * output in the order given and the latency percentiles to stderr.
+     */
+    private static void runBatch(List<Path> paths) {
+        BatchRunner runner =
+                new BatchRunner(engine, jobs, timeoutMillis, maxDepth * STACK_BYTES_PER_CALL);
+        long start = System.nanoTime();
+        List<BatchRunner.Result> results;
+        try {
+            results = runner.run(paths);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        long wallNanos = System.nanoTime() - start;
+
+        boolean anyError = false;
+        boolean anyRuntimeError = false;
+        for (BatchRunner.Result result : results) {
+            System.out.print(result.out);
+            System.err.print(result.err);
+            if (result.timedOut) {
+                System.err.println("Timed out: " + result.path);
+            } else if (result.hadError || result.hadRuntimeError) {
+                System.err.println("Failed: " + result.path);
+            }
+            anyError |= result.hadError;
+            anyRuntimeError |= result.hadRuntimeError || result.timedOut;
+        }
+        System.err.println(BatchRunner.summary(results, wallNanos));
+
+        if (anyError) System.exit(65);
+        if (anyRuntimeError) System.exit(70);
+    }
+
+    /** Stops sampling, writes the collapsed stacks and prints the hottest frames to stderr. */
+    private static void reportProfile() throws IOException {
+        if (profiler == null) return;
+
+        try {
+            profiler.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        profiler.writeCollapsed(profileOutput);
+        profiler.printTop(System.err, PROFILE_TOP);
+        System.err.println("Collapsed stacks written to " + profileOutput);
     }
 
     private static void prompt() throws IOException {
         BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        // Lines share globals; each one gets its own reporter so an error doesn't stick.
+        Context context = Context.standard();
 
         while (true) {
             System.out.print("> ");
@@ -42,47 +216,73 @@ public class Lox {
             if (line.equals("quite")) {
                 System.exit(0);
             }
-            run(line);
-            hadError = false;
+            Program program = engine.compile(line, new ErrorReporter(System.err));
+            if (program != null) run(program, context);
         }
     }
 
-    private static void run(String line) {
-        Scanner scanner = new Scanner(line);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-
-        if (hadError) return;
-
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-
-        if (hadError) return;
-
-        interpreter.interpret(statements);
+    /** Runs a script in a fresh context and returns the reporter holding its errors. */
+    private static ErrorReporter runScript(Path path) throws IOException {
+        LoxEvents.ScriptRun event = new LoxEvents.ScriptRun();
+        event.begin();
+        ErrorReporter errors = new ErrorReporter(System.err);
+        try {
+            Program program = compile(path, errors);
+            if (program != null) run(program, new Context(System.out, errors));
+        } finally {
+            event.script = path.toString();
+            event.engine = kind.name().toLowerCase();
+            event.commit();
+        }
+        return errors;
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
+    private static Program compile(Path path, ErrorReporter errors) throws IOException {
+        MappedSourceReader source = new MappedSourceReader(path);
+        if (cache == null) {
+            return engine.compile(source, errors);
+        }
+
+        String key = AstCache.key(source.bytes());
+        List<Stmt> statements = cache.load(key);
+        if (statements == null) {
+            statements = Engine.parse(new Scanner(source, errors));
+            if (errors.hadError()) return null;
+            cache.store(key, statements);
+        }
+        return engine.compile(statements, errors);
     }
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
+    private static void run(Program program, Context context) {
+        if (kind == Engine.Kind.VM) {
+            engine.run(program, context);
         } else {
-            report(token.line, " at '" + token.lexem + "'", message);
+            runWithStack(() -> engine.run(program, context));
         }
     }
 
-  public static void runtimeError(RuntimeError e) {
-        System.err.println(e.getMessage() + "\n[line " + e.token.line + "]");
-        hadRuntimeError = true;
-  }
+    /**
+     * Runs the tree engines on a thread whose stack fits {@code maxDepth} calls, so the depth
+     * limit rather than the launcher's default stack size decides when a script overflows.
+     */
+    private static void runWithStack(Runnable task) {
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "jlox", maxDepth * STACK_BYTES_PER_CALL);
+        thread.start();
 
-    private static void report(int line, String where, String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+        if (failure[0] instanceof Error) throw (Error) failure[0];
     }
 }
@@ -0,0 +1,145 @@
+package com.github.anivanovic.jezik;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.script.Bindings;
+
+/**
+ * Script engine bindings kept in the cells of {@link Globals}, so a script run with them reads
+ * and writes the bindings directly, without copying. The keys are global variable names. The
+ * natives every program starts with are not listed, but scripts can still call them.
+ *
+ * <p>Java numbers are stored as the doubles Lox computes with. Any other value, including a
+ * {@link LoxCallable} written in Java, is stored as it is.
+ */
+final class LoxBindings extends AbstractMap<String, Object> implements Bindings {
+
+  // A script may declare what the bindings already hold, so it can run again in them.
+  final Globals globals = new Globals(true);
+  private final Set<Object> natives = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  LoxBindings() {
+    for (Map.Entry<String, LoxCallable> global : Natives.all().entrySet()) {
+      globals.defineCell(globals.slot(global.getKey()), global.getValue());
+      natives.add(global.getValue());
+    }
+  }
+
+  /** The Lox value for a Java one. */
+  static Object toLox(Object value) {
+    if (value instanceof Number && !(value instanceof Double)) {
+      return ((Number) value).doubleValue();
+    }
+    if (value instanceof Character) return value.toString();
+    return value;
+  }
+
+  /** Whether a script would see the cell as a binding: defined and not a native. */
+  private boolean visible(Object value) {
+    return value != Globals.UNDEFINED && !natives.contains(value);
+  }
+
+  private static String name(Object key) {
+    if (key == null) throw new NullPointerException("key can not be null");
+    if (!(key instanceof String)) throw new ClassCastException("key should be a String");
+    if (((String) key).isEmpty()) throw new IllegalArgumentException("key can not be empty");
+    return (String) key;
+  }
+
+  /** The cell's value, natives included, or {@link Globals#UNDEFINED}. */
+  Object lookup(String name) {
+    int index = globals.find(name);
+    return index == -1 ? Globals.UNDEFINED : globals.lookup(index);
+  }
+
+  @Override
+  public Object get(Object key) {
+    Object value = lookup(name(key));
+    return visible(value) ? value : null;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return visible(lookup(name(key)));
+  }
+
+  @Override
+  public Object put(String name, Object value) {
+    Object previous = get(name);
+    globals.storeCell(globals.slot(name), toLox(value));
+    return previous;
+  }
+
+  @Override
+  public Object remove(Object key) {
+    String name = name(key);
+    Object previous = lookup(name);
+    if (!visible(previous)) return null;
+    globals.storeCell(globals.find(name), Globals.UNDEFINED);
+    return previous;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Object>>() {
+      @Override
+      public Iterator<Map.Entry<String, Object>> iterator() {
+        return new Cells();
+      }
+
+      @Override
+      public int size() {
+        int size = 0;
+        for (int i = 0; i < globals.size(); i++) {
+          if (visible(globals.lookup(i))) size++;
+        }
+        return size;
+      }
+    };
+  }
+
+  /** Walks the visible cells in index order. */
+  private final class Cells implements Iterator<Map.Entry<String, Object>> {
+    private int next = advance(0);
+    private int last = -1;
+
+    private int advance(int index) {
+      while (index < globals.size() && !visible(globals.lookup(index))) index++;
+      return index;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next < globals.size();
+    }
+
+    @Override
+    public Map.Entry<String, Object> next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      last = next;
+      next = advance(next + 1);
+      int index = last;
+      return new SimpleEntry<String, Object>(globals.nameOf(index), globals.lookup(index)) {
+        @Override
+        public Object setValue(Object value) {
+          Object previous = super.setValue(toLox(value));
+          globals.storeCell(index, getValue());
+          return previous;
+        }
+      };
+    }
+
+    @Override
+    public void remove() {
+      if (last == -1) throw new IllegalStateException();
+      globals.storeCell(last, Globals.UNDEFINED);
+      last = -1;
+    }
+  }
+}
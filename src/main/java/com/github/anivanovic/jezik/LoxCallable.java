@@ -1,9 +1,38 @@
 package com.github.anivanovic.jezik;
 
-import java.util.List;
-
+/**
+ * Something Lox code can call. Callers have already checked the argument count against
+ * {@link #arity()}. Calls with up to three arguments go through {@code call0} to {@code call3},
+ * so neither side needs an array; callables override the ones for their arity to take the
+ * arguments straight into their frame. The array form is for more arguments, and is where the
+ * fixed forms end up unless they are overridden.
+ */
 public interface LoxCallable {
 
+    Object[] NO_ARGS = new Object[0];
+
     int arity();
-    Object call(Interpreter interpreter, List<Object> args);
+
+    /**
+     * Calls with the arguments in an array of exactly {@link #arity()} elements. The interpreter
+     * is never null and uses the caller's context; on the vm and closure engines it is one made
+     * for the run rather than the engine running the caller.
+     */
+    Object call(Interpreter interpreter, Object[] args);
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, NO_ARGS);
+    }
+
+    default Object call1(Interpreter interpreter, Object arg0) {
+        return call(interpreter, new Object[] {arg0});
+    }
+
+    default Object call2(Interpreter interpreter, Object arg0, Object arg1) {
+        return call(interpreter, new Object[] {arg0, arg1});
+    }
+
+    default Object call3(Interpreter interpreter, Object arg0, Object arg1, Object arg2) {
+        return call(interpreter, new Object[] {arg0, arg1, arg2});
+    }
 }
@@ -0,0 +1,66 @@
+package com.github.anivanovic.jezik;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder events for Lox programs. A recording that leaves them disabled pays for
+ * little more than the allocation of the event, which the JIT usually removes.
+ */
+final class LoxEvents {
+
+  private LoxEvents() {}
+
+  @Name("jlox.ScriptRun")
+  @Label("Script Run")
+  @Category("jlox")
+  @StackTrace(false)
+  static class ScriptRun extends Event {
+    @Label("Script")
+    String script;
+
+    @Label("Engine")
+    String engine;
+  }
+
+  @Name("jlox.Phase")
+  @Label("Phase")
+  @Description("Parsing, which includes scanning, resolving, compiling or running a script")
+  @Category("jlox")
+  @StackTrace(false)
+  static class Phase extends Event {
+    @Label("Phase")
+    String phase;
+
+    // Kept for the counters, which are not in the recording.
+    transient long started;
+  }
+
+  @Name("jlox.FunctionCall")
+  @Label("Function Call")
+  @Description("A call to a Lox function that took longer than the threshold; needs -Djlox.metrics=true")
+  @Category("jlox")
+  @StackTrace(false)
+  @Threshold("20 ms")
+  static class FunctionCall extends Event {
+    @Label("Function")
+    String function;
+  }
+
+  @Name("jlox.RuntimeError")
+  @Label("Runtime Error")
+  @Category("jlox")
+  @StackTrace(false)
+  static class RuntimeError extends Event {
+    @Label("Message")
+    String message;
+
+    @Label("Line")
+    int line;
+  }
+}
@@ -1,15 +1,17 @@
 package com.github.anivanovic.jezik;
 
-import java.util.List;
-
 public class LoxFunction implements LoxCallable {
 
-    private final Stmt.Function function;
-    private final Environment closure;
+    final Stmt.Function function;
+    // Only the variables the body uses from enclosing functions, not their whole environments.
+    private final Cell[] upvalues;
+    // The globals of the program that declared the function.
+    private final LinkedGlobals globals;
 
-    public LoxFunction(Stmt.Function function, Environment environment) {
+    LoxFunction(Stmt.Function function, Cell[] upvalues, LinkedGlobals globals) {
         this.function = function;
-        this.closure = environment;
+        this.upvalues = upvalues;
+        this.globals = globals;
     }
 
     @Override
@@ -17,19 +19,127 @@ public class LoxFunction implements LoxCallable {
         return function.variables.size();
     }
 
+    /**
+     * Runs the body, then keeps running the targets of tail calls in the same Java frame, so
+     * tail recursion takes constant stack. On a tiered interpreter, the body of a hot function
+     * runs as compiled code, and falls back to being walked when that code deoptimizes.
+     */
+    @Override
+    public Object call(Interpreter interpreter, Object[] args) {
+        if (!interpreter.tiered) return walk(interpreter, frame(args));
+
+        LoxFunction callee = this;
+        while (true) {
+            CompiledCode code = callee.function.tiering.tier(callee.function, args);
+            if (code != null) {
+                Object result = interpreter.run(code, callee.globals, args);
+                if (result instanceof CompiledFunction.TailCall) {
+                    CompiledFunction.TailCall tailCall = (CompiledFunction.TailCall) result;
+                    if (!(tailCall.callee instanceof LoxFunction)) {
+                        return tailCall.callee.call(interpreter, tailCall.args);
+                    }
+                    callee = (LoxFunction) tailCall.callee;
+                    args = tailCall.args;
+                    if (interpreter.profiler != null) interpreter.profiler.replace(callee);
+                    LoxInterruptedException.check();
+                    continue;
+                }
+                if (result != CompiledCode.DEOPTIMIZE) return result;
+                callee.function.tiering.deoptimize(code, args);
+            }
+
+            switch (interpreter.executeFunction(callee, callee.function.body, callee.frame(args),
+                    callee.upvalues, callee.globals)) {
+                case RETURN:
+                    return interpreter.takeReturnValue();
+                case TAIL_CALL:
+                    callee = interpreter.takeTailCallee();
+                    args = interpreter.takeTailArgs();
+                    if (interpreter.profiler != null) interpreter.profiler.replace(callee);
+                    LoxInterruptedException.check();
+                    break;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    // Walked calls take their arguments straight into the frame. Tiering profiles the
+    // arguments and compiled code reads them from an array, so a tiered call takes one.
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        if (interpreter.tiered) return call(interpreter, NO_ARGS);
+        return walk(interpreter, new Environment(null, function.frameSize));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object arg0) {
+        if (interpreter.tiered) return call(interpreter, new Object[] {arg0});
+        Environment frame = new Environment(null, function.frameSize);
+        bind(frame, 0, arg0);
+        return walk(interpreter, frame);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object arg0, Object arg1) {
+        if (interpreter.tiered) return call(interpreter, new Object[] {arg0, arg1});
+        Environment frame = new Environment(null, function.frameSize);
+        bind(frame, 0, arg0);
+        bind(frame, 1, arg1);
+        return walk(interpreter, frame);
+    }
+
     @Override
-    public Object call(Interpreter interpreter, List<Object> args) {
-        Environment environment = new Environment(closure);
+    public Object call3(Interpreter interpreter, Object arg0, Object arg1, Object arg2) {
+        if (interpreter.tiered) return call(interpreter, new Object[] {arg0, arg1, arg2});
+        Environment frame = new Environment(null, function.frameSize);
+        bind(frame, 0, arg0);
+        bind(frame, 1, arg1);
+        bind(frame, 2, arg2);
+        return walk(interpreter, frame);
+    }
 
-        for (int i = 0; i < args.size(); i++) {
-            environment.define(function.variables.get(i), args.get(i));
+    /** Walks the body in a frame holding its arguments, then the targets of its tail calls. */
+    private Object walk(Interpreter interpreter, Environment frame) {
+        LoxFunction callee = this;
+        while (true) {
+            switch (interpreter.executeFunction(
+                    callee, callee.function.body, frame, callee.upvalues, callee.globals)) {
+                case RETURN:
+                    return interpreter.takeReturnValue();
+                case TAIL_CALL:
+                    callee = interpreter.takeTailCallee();
+                    frame = interpreter.takeTailFrame(callee);
+                    if (interpreter.profiler != null) interpreter.profiler.replace(callee);
+                    LoxInterruptedException.check();
+                    break;
+                default:
+                    return null;
+            }
         }
-        try {
-            interpreter.executeBlock(function.body, environment);
-        } catch (Return e) {
-            return e.value;
+    }
+
+    /** A new frame for the body with the arguments in their parameter slots. */
+    Environment frame(Object[] args) {
+        Environment frame = new Environment(null, function.frameSize);
+        for (int i = 0; i < args.length; i++) {
+            bind(frame, i, args[i]);
         }
-        return null;
+        return frame;
+    }
+
+    /** A new frame for the body with up to three arguments, the first {@code argc} of these. */
+    Environment frame(int argc, Object arg0, Object arg1, Object arg2) {
+        Environment frame = new Environment(null, function.frameSize);
+        if (argc > 0) bind(frame, 0, arg0);
+        if (argc > 1) bind(frame, 1, arg1);
+        if (argc > 2) bind(frame, 2, arg2);
+        return frame;
+    }
+
+    private void bind(Environment frame, int slot, Object arg) {
+        frame.define(slot, function.boxedParams[slot] ? new Cell(arg) : arg);
     }
 
     @Override
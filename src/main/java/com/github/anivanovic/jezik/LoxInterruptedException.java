@@ -0,0 +1,18 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * Thrown out of {@link Engine#run} when the running thread is interrupted, which is how a run
+ * is cancelled. Engines look for the interrupt at loop back edges, calls and tail calls, so
+ * even a script that never blocks stops promptly.
+ */
+public class LoxInterruptedException extends RuntimeException {
+
+  LoxInterruptedException() {
+    super("Script interrupted.");
+  }
+
+  /** Throws if the current thread was interrupted, clearing the interrupt like a blocking call. */
+  static void check() {
+    if (Thread.interrupted()) throw new LoxInterruptedException();
+  }
+}
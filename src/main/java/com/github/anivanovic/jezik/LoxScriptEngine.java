@@ -0,0 +1,306 @@
+package com.github.anivanovic.jezik;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+/**
+ * The {@code javax.script} face of jlox. A script is compiled once into a {@link Program}, and
+ * every evaluation runs that program in a new {@link Context} over the engine scope bindings,
+ * so a {@link CompiledScript} can be evaluated again and again with different bindings without
+ * going through the front end.
+ *
+ * <p>Bindings from {@link #createBindings} keep their values in the cells Lox globals live in,
+ * so scripts use them directly. Other bindings are copied into such cells before a run, and
+ * what the run changed is copied back after it. Names only the global scope has are visible
+ * for the run too. Lox functions a script defines can be called from Java with
+ * {@link #invokeFunction} or through an interface from {@link #getInterface(Class)}. Unlike in
+ * the prompt, declaring a global the bindings already hold replaces it, so a script can be run
+ * again in the bindings it filled.
+ *
+ * <p>Compile and runtime errors are thrown as {@link ScriptException}s. Evaluating returns null,
+ * since a Lox script is statements without a value. An engine is not thread safe, but its
+ * compiled scripts are: threads evaluating one with their own bindings don't interfere.
+ */
+public final class LoxScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+
+  private final ScriptEngineFactory factory;
+  private final Engine engine;
+
+  public LoxScriptEngine(Engine engine) {
+    this(new LoxScriptEngineFactory(), engine);
+  }
+
+  LoxScriptEngine(ScriptEngineFactory factory, Engine engine) {
+    this.factory = factory;
+    this.engine = engine;
+    context.setBindings(createBindings(), ScriptContext.ENGINE_SCOPE);
+  }
+
+  @Override
+  public Bindings createBindings() {
+    return new LoxBindings();
+  }
+
+  @Override
+  public ScriptEngineFactory getFactory() {
+    return factory;
+  }
+
+  @Override
+  public Object eval(String script, ScriptContext context) throws ScriptException {
+    ErrorReporter errors = reporter();
+    return run(compiled(engine.compile(script, errors), errors, context), context);
+  }
+
+  @Override
+  public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+    ErrorReporter errors = reporter();
+    return run(compiled(engine.compile(reader, errors), errors, context), context);
+  }
+
+  @Override
+  public CompiledScript compile(String script) throws ScriptException {
+    ErrorReporter errors = reporter();
+    return new Script(compiled(engine.compile(script, errors), errors, context));
+  }
+
+  @Override
+  public CompiledScript compile(Reader script) throws ScriptException {
+    ErrorReporter errors = reporter();
+    return new Script(compiled(engine.compile(script, errors), errors, context));
+  }
+
+  /** A program compiled once, run anew on every evaluation. */
+  private final class Script extends CompiledScript {
+    private final Program program;
+
+    Script(Program program) {
+      this.program = program;
+    }
+
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException {
+      return run(program, context);
+    }
+
+    @Override
+    public ScriptEngine getEngine() {
+      return LoxScriptEngine.this;
+    }
+  }
+
+  private Program compiled(Program program, ErrorReporter errors, ScriptContext context)
+      throws ScriptException {
+    if (program == null) throw error(errors.firstError(), errors.firstErrorLine(), context);
+    return program;
+  }
+
+  private Object run(Program program, ScriptContext context) throws ScriptException {
+    ErrorReporter errors = reporter();
+    Scope scope = new Scope(context);
+    try {
+      engine.run(program, new Context(scope.globals.globals, printer(context), errors));
+    } finally {
+      scope.close();
+    }
+    if (errors.hadRuntimeError()) {
+      throw error(errors.firstError(), errors.firstErrorLine(), context);
+    }
+    return null;
+  }
+
+  @Override
+  public Object invokeFunction(String name, Object... args)
+      throws ScriptException, NoSuchMethodException {
+    if (name == null) throw new NullPointerException("name can not be null");
+    Scope scope = new Scope(context);
+    try {
+      Object function = scope.globals.lookup(name);
+      if (!isFunction(function)) throw new NoSuchMethodException(name);
+      List<Object> arguments = new ArrayList<>(args.length);
+      for (Object arg : args) {
+        arguments.add(LoxBindings.toLox(arg));
+      }
+      Context context = new Context(scope.globals.globals, printer(this.context), reporter());
+      return engine.call(context, function, arguments);
+    } catch (RuntimeError e) {
+      throw error(e.getMessage(), e.token.line, context);
+    } finally {
+      scope.close();
+    }
+  }
+
+  @Override
+  public Object invokeMethod(Object thiz, String name, Object... args) {
+    throw new IllegalArgumentException("Lox has no objects with methods.");
+  }
+
+  /**
+   * Implements the interface with the global functions of the same names, looked up on every
+   * call. Returns null if a function for one of its abstract methods is missing.
+   */
+  @Override
+  public <T> T getInterface(Class<T> type) {
+    if (type == null || !type.isInterface()) {
+      throw new IllegalArgumentException("Not an interface: " + type);
+    }
+    for (Method method : type.getMethods()) {
+      if (Modifier.isAbstract(method.getModifiers()) && !isFunction(lookup(method.getName()))) {
+        return null;
+      }
+    }
+
+    InvocationHandler handler = (proxy, method, args) -> {
+      if (method.getDeclaringClass() == Object.class) {
+        switch (method.getName()) {
+          case "equals":
+            return proxy == args[0];
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          default:
+            return type.getName() + " implemented in Lox";
+        }
+      }
+      if (method.isDefault() && !isFunction(lookup(method.getName()))) {
+        return InvocationHandler.invokeDefault(proxy, method, args);
+      }
+      Object result = invokeFunction(method.getName(), args == null ? new Object[0] : args);
+      return toJava(result, method.getReturnType());
+    };
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+  }
+
+  @Override
+  public <T> T getInterface(Object thiz, Class<T> type) {
+    throw new IllegalArgumentException("Lox has no objects with methods.");
+  }
+
+  /** The global's value in the engine's context, or {@link Globals#UNDEFINED}. */
+  private Object lookup(String name) {
+    Scope scope = new Scope(context);
+    try {
+      return scope.globals.lookup(name);
+    } finally {
+      scope.close();
+    }
+  }
+
+  private static boolean isFunction(Object value) {
+    return value instanceof LoxCallable || value instanceof BytecodeClosure;
+  }
+
+  /** Narrows the double a Lox function returns to the number type an interface declares. */
+  private static Object toJava(Object value, Class<?> type) {
+    if (type == void.class) return null;
+    if (!(value instanceof Double)) return value;
+    double number = (Double) value;
+    if (type == int.class || type == Integer.class) return (int) number;
+    if (type == long.class || type == Long.class) return (long) number;
+    if (type == float.class || type == Float.class) return (float) number;
+    if (type == short.class || type == Short.class) return (short) number;
+    if (type == byte.class || type == Byte.class) return (byte) number;
+    return value;
+  }
+
+  /**
+   * The globals a run or call in a script context uses. Lox bindings are used as they are; any
+   * other bindings are copied in, and names the global scope adds are defined for the run.
+   */
+  private static final class Scope {
+    final LoxBindings globals;
+    private final Bindings bindings;
+    // Values as they were stored before the run, to tell what the run changed.
+    private final Map<String, Object> copied = new HashMap<>();
+    private final Map<String, Object> inherited = new HashMap<>();
+
+    Scope(ScriptContext context) {
+      bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+      if (bindings instanceof LoxBindings) {
+        globals = (LoxBindings) bindings;
+      } else {
+        globals = new LoxBindings();
+        copy(bindings, copied);
+      }
+      copy(context.getBindings(ScriptContext.GLOBAL_SCOPE), inherited);
+    }
+
+    private void copy(Bindings from, Map<String, Object> stored) {
+      if (from == null) return;
+      for (Map.Entry<String, Object> binding : from.entrySet()) {
+        if (globals.containsKey(binding.getKey())) continue;
+        globals.put(binding.getKey(), binding.getValue());
+        stored.put(binding.getKey(), globals.get(binding.getKey()));
+      }
+    }
+
+    /** Drops names the global scope lent, unless the run assigned them, and copies back. */
+    void close() {
+      for (Map.Entry<String, Object> binding : inherited.entrySet()) {
+        if (globals.get(binding.getKey()) == binding.getValue()) {
+          globals.remove(binding.getKey());
+        }
+      }
+      if (globals == bindings) return;
+      for (Map.Entry<String, Object> binding : globals.entrySet()) {
+        String name = binding.getKey();
+        if (!copied.containsKey(name) || copied.get(name) != binding.getValue()) {
+          bindings.put(name, binding.getValue());
+        }
+      }
+    }
+  }
+
+  private static ErrorReporter reporter() {
+    return new ErrorReporter(new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  private static ScriptException error(String message, int line, ScriptContext context) {
+    Object file = context.getAttribute(ScriptEngine.FILENAME);
+    return new ScriptException(message, file == null ? null : file.toString(), line);
+  }
+
+  private static PrintStream printer(ScriptContext context) {
+    return new WriterPrintStream(context.getWriter());
+  }
+
+  /** Sends what Lox prints, which is always whole lines, to a script context's writer. */
+  private static final class WriterPrintStream extends PrintStream {
+    private final Writer writer;
+
+    WriterPrintStream(Writer writer) {
+      super(OutputStream.nullOutputStream());
+      this.writer = writer;
+    }
+
+    @Override
+    public void println(String line) {
+      try {
+        writer.write(line);
+        writer.write(System.lineSeparator());
+        writer.flush();
+      } catch (IOException e) {
+        setError();
+      }
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package com.github.anivanovic.jezik;
+
+import java.util.List;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * Makes {@link LoxScriptEngine}s for {@code javax.script}, which finds this factory through
+ * {@code META-INF/services}. The engines use the tree engine unless the {@code jlox.engine}
+ * system property names another one, as in {@code -Djlox.engine=vm}.
+ */
+public final class LoxScriptEngineFactory implements ScriptEngineFactory {
+
+  private static final String VERSION = "1.0";
+
+  @Override
+  public String getEngineName() {
+    return "jlox";
+  }
+
+  @Override
+  public String getEngineVersion() {
+    return VERSION;
+  }
+
+  @Override
+  public List<String> getExtensions() {
+    return List.of("lox");
+  }
+
+  @Override
+  public List<String> getMimeTypes() {
+    return List.of("application/x-lox", "text/x-lox");
+  }
+
+  @Override
+  public List<String> getNames() {
+    return List.of("lox", "Lox", "jlox");
+  }
+
+  @Override
+  public String getLanguageName() {
+    return "Lox";
+  }
+
+  @Override
+  public String getLanguageVersion() {
+    return VERSION;
+  }
+
+  @Override
+  public Object getParameter(String key) {
+    if (key == null) return null;
+    switch (key) {
+      case ScriptEngine.ENGINE:
+        return getEngineName();
+      case ScriptEngine.ENGINE_VERSION:
+        return getEngineVersion();
+      case ScriptEngine.NAME:
+        return getNames().get(0);
+      case ScriptEngine.LANGUAGE:
+        return getLanguageName();
+      case ScriptEngine.LANGUAGE_VERSION:
+        return getLanguageVersion();
+      default:
+        // Including "THREADING": an engine's own bindings must not be shared between threads.
+        return null;
+    }
+  }
+
+  @Override
+  public String getMethodCallSyntax(String object, String method, String... args) {
+    return object + "." + method + "(" + String.join(", ", args) + ")";
+  }
+
+  @Override
+  public String getOutputStatement(String toDisplay) {
+    // Lox strings have no escapes, so text with quotes in it can not be printed this way.
+    return "print \"" + toDisplay + "\";";
+  }
+
+  @Override
+  public String getProgram(String... statements) {
+    StringBuilder program = new StringBuilder();
+    for (String statement : statements) {
+      program.append(statement).append(";\n");
+    }
+    return program.toString();
+  }
+
+  @Override
+  public ScriptEngine getScriptEngine() {
+    return new LoxScriptEngine(this, new Engine(kind(System.getProperty("jlox.engine", "tree"))));
+  }
+
+  private static Engine.Kind kind(String name) {
+    try {
+      return Engine.Kind.valueOf(name.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown engine '" + name + "' in jlox.engine.");
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package com.github.anivanovic.jezik;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a script as UTF-8 straight out of a memory mapped file. Characters are decoded only
+ * as the scanner asks for them, so the heap never holds a copy of the whole file.
+ */
+class MappedSourceReader extends Reader {
+  private final ByteBuffer bytes;
+  private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private boolean flushed = false;
+
+  MappedSourceReader(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Script " + path + " is larger than 2GB.");
+      }
+      // The mapping stays valid after the channel is closed.
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+    skipByteOrderMark();
+  }
+
+  private void skipByteOrderMark() {
+    if (bytes.remaining() >= 3
+        && bytes.get(0) == (byte) 0xEF && bytes.get(1) == (byte) 0xBB && bytes.get(2) == (byte) 0xBF) {
+      bytes.position(3);
+    }
+  }
+
+  /** The undecoded script bytes still to be read. */
+  ByteBuffer bytes() {
+    return bytes.asReadOnlyBuffer();
+  }
+
+  @Override
+  public int read(char[] buffer, int offset, int length) throws IOException {
+    if (flushed) return -1;
+    if (length == 0) return 0;
+
+    CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+    CoderResult result = decoder.decode(bytes, out, true);
+    if (result.isUnderflow() && !bytes.hasRemaining()) {
+      // All input consumed; drain whatever the decoder still holds.
+      result = decoder.flush(out);
+      flushed = result.isUnderflow();
+    }
+
+    int read = out.position() - offset;
+    if (read == 0 && flushed) return -1;
+    return read;
+  }
+
+  @Override
+  public void close() {
+  }
+}
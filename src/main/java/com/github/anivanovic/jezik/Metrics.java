@@ -0,0 +1,157 @@
+package com.github.anivanovic.jezik;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters behind {@link MetricsMBean}. They are only kept when the {@code jlox.metrics}
+ * system property is true; everywhere else the checks of {@link #ENABLED} are constant
+ * false and compiled away.
+ */
+final class Metrics implements MetricsMBean {
+
+  static final boolean ENABLED = Boolean.getBoolean("jlox.metrics");
+
+  static final LongAdder statements = new LongAdder();
+  static final LongAdder calls = new LongAdder();
+  static final LongAdder environments = new LongAdder();
+  private static final LongAdder scannerNanos = new LongAdder();
+  private static final LongAdder parserNanos = new LongAdder();
+  private static final LongAdder resolverNanos = new LongAdder();
+  private static final LongAdder interpreterNanos = new LongAdder();
+
+  // Registered on first use of the class, so programs embedding an Engine get the MBean too.
+  static {
+    if (ENABLED) register();
+  }
+
+  private Metrics() {}
+
+  private static void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new Metrics(), new ObjectName("com.github.anivanovic.jezik:type=Metrics"));
+    } catch (InstanceAlreadyExistsException e) {
+      // Another copy of the interpreter in this JVM, loaded by another class loader, was first.
+    } catch (JMException e) {
+      System.err.println("Could not register metrics: " + e.getMessage());
+    }
+  }
+
+  /** Tokens from {@code scanner}, timing the scanning the parser pulls them with. */
+  static Supplier<Token> tokens(Scanner scanner) {
+    if (!ENABLED) return scanner::nextToken;
+    return () -> {
+      long start = System.nanoTime();
+      Token token = scanner.nextToken();
+      scannerNanos.add(System.nanoTime() - start);
+      return token;
+    };
+  }
+
+  static LoxEvents.Phase begin(String phase) {
+    LoxEvents.Phase event = new LoxEvents.Phase();
+    event.phase = phase;
+    event.begin();
+    if (ENABLED) event.started = System.nanoTime();
+    return event;
+  }
+
+  /** Ends a phase started with {@link #begin}. */
+  static void end(LoxEvents.Phase event) {
+    event.commit();
+    if (!ENABLED) return;
+
+    long elapsed = System.nanoTime() - event.started;
+    switch (event.phase) {
+      case "parse":
+        parserNanos.add(elapsed);
+        break;
+      case "resolve":
+        resolverNanos.add(elapsed);
+        break;
+      case "run":
+        interpreterNanos.add(elapsed);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /** Counts a call; returns its event, to be passed to {@link #endCall}, or null. */
+  static LoxEvents.FunctionCall beginCall() {
+    if (!ENABLED) return null;
+    calls.increment();
+    LoxEvents.FunctionCall event = new LoxEvents.FunctionCall();
+    event.begin();
+    return event;
+  }
+
+  static void endCall(LoxEvents.FunctionCall event, LoxCallable function) {
+    event.end();
+    if (event.shouldCommit()) {
+      event.function = function.toString();
+      event.commit();
+    }
+  }
+
+  static void runtimeError(RuntimeError error) {
+    LoxEvents.RuntimeError event = new LoxEvents.RuntimeError();
+    if (event.shouldCommit()) {
+      event.message = error.getMessage();
+      event.line = error.token.line;
+      event.commit();
+    }
+  }
+
+  @Override
+  public long getStatementsExecuted() {
+    return statements.sum();
+  }
+
+  @Override
+  public long getCalls() {
+    return calls.sum();
+  }
+
+  @Override
+  public long getEnvironmentAllocations() {
+    return environments.sum();
+  }
+
+  @Override
+  public long getScannerNanos() {
+    return scannerNanos.sum();
+  }
+
+  @Override
+  public long getParserNanos() {
+    // The parser pulls its tokens as it goes, so its phase includes the scanning.
+    return Math.max(0, parserNanos.sum() - scannerNanos.sum());
+  }
+
+  @Override
+  public long getResolverNanos() {
+    return resolverNanos.sum();
+  }
+
+  @Override
+  public long getInterpreterNanos() {
+    return interpreterNanos.sum();
+  }
+
+  @Override
+  public void reset() {
+    statements.reset();
+    calls.reset();
+    environments.reset();
+    scannerNanos.reset();
+    parserNanos.reset();
+    resolverNanos.reset();
+    interpreterNanos.reset();
+  }
+}
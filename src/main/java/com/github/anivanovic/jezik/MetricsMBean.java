@@ -0,0 +1,26 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * Runtime counters of the interpreter, registered as
+ * {@code com.github.anivanovic.jezik:type=Metrics} when jlox runs with
+ * {@code -Djlox.metrics=true}. Times are in nanoseconds. The bytecode VM counts calls but has
+ * no statements or environments to count.
+ */
+public interface MetricsMBean {
+
+  long getStatementsExecuted();
+
+  long getCalls();
+
+  long getEnvironmentAllocations();
+
+  long getScannerNanos();
+
+  long getParserNanos();
+
+  long getResolverNanos();
+
+  long getInterpreterNanos();
+
+  void reset();
+}
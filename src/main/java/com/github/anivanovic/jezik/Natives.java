@@ -0,0 +1,95 @@
+package com.github.anivanovic.jezik;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Native functions available to every Lox program, whichever engine runs it. */
+final class Natives {
+
+  private Natives() {}
+
+  static Map<String, LoxCallable> all() {
+    Map<String, LoxCallable> natives = new LinkedHashMap<>();
+    natives.put("clock", new LoxCallable() {
+      @Override
+      public int arity() {
+        return 0;
+      }
+
+      @Override
+      public Object call(Interpreter interpreter, Object[] args) {
+        return call0(interpreter);
+      }
+
+      @Override
+      public Object call0(Interpreter interpreter) {
+        return ((double)System.currentTimeMillis() / 1000.0);
+      }
+
+      @Override
+      public String toString() {
+        return "<native fn>";
+      }
+    });
+    natives.put("sleep", new LoxCallable() {
+      @Override
+      public int arity() {
+        return 1;
+      }
+
+      @Override
+      public Object call(Interpreter interpreter, Object[] args) {
+        return call1(interpreter, args[0]);
+      }
+
+      /** Blocks for a number of seconds. Virtual threads unmount while they sleep. */
+      @Override
+      public Object call1(Interpreter interpreter, Object seconds) {
+        if (!(seconds instanceof Double)) return null;
+        try {
+          Thread.sleep((long) ((double) seconds * 1000));
+        } catch (InterruptedException e) {
+          throw new LoxInterruptedException();
+        }
+        return null;
+      }
+
+      @Override
+      public String toString() {
+        return "<native fn>";
+      }
+    });
+    natives.put("readFile", new LoxCallable() {
+      @Override
+      public int arity() {
+        return 1;
+      }
+
+      @Override
+      public Object call(Interpreter interpreter, Object[] args) {
+        return call1(interpreter, args[0]);
+      }
+
+      /** The file's text, or nil if it can't be read. */
+      @Override
+      public Object call1(Interpreter interpreter, Object path) {
+        if (!(path instanceof String)) return null;
+        try {
+          return Files.readString(Paths.get((String) path));
+        } catch (IOException | InvalidPathException e) {
+          return null;
+        }
+      }
+
+      @Override
+      public String toString() {
+        return "<native fn>";
+      }
+    });
+    return natives;
+  }
+}
@@ -0,0 +1,64 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * Instruction set of the bytecode {@link VM}. Mirrors the {@code OpCode} enum of
+ * the C implementation and extends it with locals, globals, jumps and calls.
+ *
+ * <p>Operands follow the opcode in the code stream: {@code const} operands are two byte
+ * constant table indexes, global operands are two byte numbers into the program's
+ * {@link LinkedGlobals}, {@code slot} and {@code argc} are single bytes and jump offsets are two byte unsigned
+ * distances.
+ */
+final class OpCode {
+  static final byte OP_CONST = 0;
+  static final byte OP_NIL = 1;
+  static final byte OP_TRUE = 2;
+  static final byte OP_FALSE = 3;
+  static final byte OP_POP = 4;
+  static final byte OP_GET_LOCAL = 5;
+  static final byte OP_SET_LOCAL = 6;
+  static final byte OP_GET_GLOBAL = 7;
+  static final byte OP_DEFINE_GLOBAL = 8;
+  static final byte OP_SET_GLOBAL = 9;
+  static final byte OP_GET_UPVALUE = 10;
+  static final byte OP_SET_UPVALUE = 11;
+  static final byte OP_EQUAL = 12;
+  static final byte OP_GREATER = 13;
+  static final byte OP_GREATER_EQUAL = 14;
+  static final byte OP_LESS = 15;
+  static final byte OP_LESS_EQUAL = 16;
+  static final byte OP_ADD = 17;
+  static final byte OP_SUBTRACT = 18;
+  static final byte OP_MULTIPLY = 19;
+  static final byte OP_DIVIDE = 20;
+  static final byte OP_NOT = 21;
+  static final byte OP_NEGATE = 22;
+  static final byte OP_PRINT = 23;
+  static final byte OP_JUMP = 24;
+  static final byte OP_JUMP_IF_FALSE = 25;
+  static final byte OP_LOOP = 26;
+  static final byte OP_CALL = 27;
+  static final byte OP_CLOSURE = 28;
+  static final byte OP_CLOSE_UPVALUE = 29;
+  static final byte OP_RETURN = 30;
+  /** Like {@code OP_CALL}, but a called closure replaces the current frame. */
+  static final byte OP_TAIL_CALL = 31;
+
+  /**
+   * How many values each instruction leaves on the stack minus how many it takes. The calls
+   * additionally pop their {@code argc} arguments.
+   */
+  static final int[] STACK_EFFECT = {
+      1, 1, 1, 1, -1,      // CONST, NIL, TRUE, FALSE, POP
+      1, 0,                // GET_LOCAL, SET_LOCAL
+      1, -1, 0,            // GET_GLOBAL, DEFINE_GLOBAL, SET_GLOBAL
+      1, 0,                // GET_UPVALUE, SET_UPVALUE
+      -1, -1, -1, -1, -1,  // EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL
+      -1, -1, -1, -1,      // ADD, SUBTRACT, MULTIPLY, DIVIDE
+      0, 0, -1,            // NOT, NEGATE, PRINT
+      0, 0, 0,             // JUMP, JUMP_IF_FALSE, LOOP
+      0, 1, -1, -1, 0,     // CALL, CLOSURE, CLOSE_UPVALUE, RETURN, TAIL_CALL
+  };
+
+  private OpCode() {}
+}
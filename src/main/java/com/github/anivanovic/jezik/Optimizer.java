@@ -0,0 +1,33 @@
+package com.github.anivanovic.jezik;
+
+import java.util.List;
+
+/**
+ * Runs a pipeline of tree rewriting passes over a resolved program. Passes build new nodes,
+ * so the result has to go through the {@link Resolver} again before it can run.
+ */
+class Optimizer {
+
+  /** One rewriting step over a whole program. */
+  interface Pass {
+    List<Stmt> apply(List<Stmt> statements);
+  }
+
+  private final List<Pass> passes;
+
+  Optimizer(List<Pass> passes) {
+    this.passes = passes;
+  }
+
+  /** Folding first, so dead code elimination sees the conditions it turned into literals. */
+  static Optimizer standard() {
+    return new Optimizer(List.of(new ConstantFolder(), new DeadCodeEliminator()));
+  }
+
+  List<Stmt> optimize(List<Stmt> statements) {
+    for (Pass pass : passes) {
+      statements = pass.apply(statements);
+    }
+    return statements;
+  }
+}
@@ -1,16 +1,30 @@
 package com.github.anivanovic.jezik;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current = 0;
+    // Only the lookahead and the last consumed token are held; the rest are pulled on demand.
+    private final Supplier<Token> tokens;
+    private final ErrorReporter errors;
+    private Token current;
+    private Token previous;
 
-    public Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    public Parser(List<Token> tokens, ErrorReporter errors) {
+        this.errors = errors;
+        Iterator<Token> iterator = tokens.iterator();
+        this.tokens = iterator::next;
+        this.current = iterator.next();
+    }
+
+    Parser(Scanner scanner) {
+        this.errors = scanner.errors;
+        this.tokens = Metrics.tokens(scanner);
+        this.current = tokens.get();
     }
 
     List<Stmt> parse() {
@@ -24,10 +38,11 @@ public class Parser {
 
     private Stmt declaration() {
       try{
+        int line = peek().line;
         if (match(TokenType.VAR)) {
-          return varStatement();
+          return at(line, varStatement());
         } else if (match(TokenType.FUN)) {
-          return funStatement("function");
+          return at(line, funStatement("function"));
         }
         return statement();
       } catch (ParseError e) {
@@ -55,20 +70,27 @@ public class Parser {
   }
 
   private Stmt statement() {
-        if (match(TokenType.PRINT)) return printStatement();
-        if (match(TokenType.LEFT_BRACE)) return blockStatement();
-        if (match(TokenType.IF)) return ifStatement();
-        if (match(TokenType.WHILE)) return whileStatement();
-        if (match(TokenType.FOR)) return forStatement();
-        if (match(TokenType.RETURN)) return returnStatement();
+        int line = peek().line;
+        if (match(TokenType.PRINT)) return at(line, printStatement());
+        if (match(TokenType.LEFT_BRACE)) return at(line, blockStatement());
+        if (match(TokenType.IF)) return at(line, ifStatement());
+        if (match(TokenType.WHILE)) return at(line, whileStatement());
+        if (match(TokenType.FOR)) return at(line, forStatement());
+        if (match(TokenType.RETURN)) return at(line, returnStatement());
+
+        return at(line, expressionStatement());
+    }
 
-        return expressionStatement();
+    /** Records the line a statement starts on. */
+    private static Stmt at(int line, Stmt stmt) {
+        stmt.line = line;
+        return stmt;
     }
 
     private Stmt.Return returnStatement() {
         Token token = previous();
         Expr value = null;
-        if (!match(TokenType.SEMICOLON)) {
+        if (!check(TokenType.SEMICOLON)) {
             value = expression();
         }
         consume(TokenType.SEMICOLON, "Expect ';' after return statement");
@@ -76,14 +98,15 @@ public class Parser {
     }
 
     private Stmt forStatement() {
+        int line = previous().line;
         consume(TokenType.LEFT_PAREN, "Expected '(' after for.");
         Stmt initializer;
         if (match(TokenType.SEMICOLON)) {
             initializer = null;
         } else if (match(TokenType.VAR)) {
-            initializer = varStatement();
+            initializer = at(line, varStatement());
         } else {
-            initializer = expressionStatement();
+            initializer = at(line, expressionStatement());
         }
 
         Expr condition = null;
@@ -93,20 +116,23 @@ public class Parser {
         consume(TokenType.SEMICOLON, "Expected ';' after loop condition.");
 
         Expr increment = null;
+        int incrementLine = peek().line;
         if (!check(TokenType.RIGHT_PAREN)) {
             increment = expression();
         }
         consume(TokenType.RIGHT_PAREN, "Expected ')' for clauses.");
         Stmt body = statement();
 
+        // The statements the loop turns into are charged to the clauses they come from.
         if (increment != null) {
-            body = new Stmt.Block(List.of(body, new Stmt.Expression(increment)));
+            body = at(line, new Stmt.Block(
+                    List.of(body, at(incrementLine, new Stmt.Expression(increment)))));
         }
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = at(line, new Stmt.While(condition, body));
 
         if (initializer != null) {
-            body = new Stmt.Block(List.of(initializer, body));
+            body = at(line, new Stmt.Block(List.of(initializer, body)));
         }
 
         return body;
@@ -290,7 +316,7 @@ public class Parser {
         }
 
         Token paren = consume(TokenType.RIGHT_PAREN, "Expect ')' after argument list.");
-        return new Expr.Call(expr, null, args);
+        return new Expr.Call(expr, paren, args);
     }
 
     private Expr primary() {
@@ -319,7 +345,7 @@ public class Parser {
     }
 
     private ParseError error(Token token, String errMsg) {
-        Lox.error(token, errMsg);
+        errors.error(token, errMsg);
         return new ParseError();
     }
 
@@ -333,6 +359,8 @@ public class Parser {
                 case PRINT: case RETURN: case VAR: case WHILE:
                     return;
             }
+
+            advance();
         }
     }
 
@@ -357,15 +385,18 @@ public class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private Token advance() {
-        if (!isAtEnd()) current++;
-        return previous();
+        if (!isAtEnd()) {
+            previous = current;
+            current = tokens.get();
+        }
+        return previous;
     }
 }
@@ -0,0 +1,193 @@
+package com.github.anivanovic.jezik;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sampling profiler for Lox code. The interpreter keeps a shadow stack of the functions it is
+ * running and the line each one is at, which costs a few plain stores per call. A daemon thread
+ * copies the stack on a timer and counts identical stacks; they are only turned into text for
+ * the report, so sampling stays off the interpreter's back.
+ *
+ * <p>The stack is read without synchronization, so a sample taken while a call is entered or
+ * left may be slightly off; that is noise a sampling profiler tolerates anyway.
+ */
+class Profiler {
+
+  private static final String SCRIPT = "<script>";
+
+  private final long intervalNanos;
+  // Frame 0 is the top-level code. Frames below the top are at the line they made a call from.
+  private LoxCallable[] functions = new LoxCallable[64];
+  private int[] lines = new int[64];
+  private int depth = 1;
+  // Line of the top frame, kept apart so that following it is a single store.
+  private int line = 0;
+
+  // Only touched by the sampling thread until it is stopped.
+  private final Map<Sample, Integer> samples = new HashMap<>();
+  private int count = 0;
+  private volatile boolean running = false;
+  // Set while a program runs, so scanning, compiling and start-up are not charged to the script.
+  private volatile boolean sampling = false;
+  private Thread sampler = null;
+
+  Profiler(long intervalNanos) {
+    this.intervalNanos = intervalNanos;
+  }
+
+  void enter(LoxCallable function, int callLine) {
+    lines[depth - 1] = callLine;
+    if (depth == functions.length) {
+      functions = Arrays.copyOf(functions, depth * 2);
+      lines = Arrays.copyOf(lines, depth * 2);
+    }
+    functions[depth] = function;
+    depth++;
+    line = 0;
+  }
+
+  void exit() {
+    depth--;
+    line = lines[depth - 1];
+  }
+
+  /** The running function made a tail call, which replaces its frame. */
+  void replace(LoxCallable function) {
+    functions[depth - 1] = function;
+    line = 0;
+  }
+
+  void line(int line) {
+    this.line = line;
+  }
+
+  void start() {
+    running = true;
+    sampler = new Thread(() -> {
+      while (running) {
+        LockSupport.parkNanos(intervalNanos);
+        sample();
+      }
+    }, "lox-profiler");
+    sampler.setDaemon(true);
+    sampler.start();
+  }
+
+  void stop() throws InterruptedException {
+    running = false;
+    sampler.join();
+  }
+
+  /** Starts taking samples; called when a program starts running. */
+  void runStarted() {
+    sampling = true;
+  }
+
+  /** Stops taking samples until the next run starts. */
+  void runFinished() {
+    sampling = false;
+  }
+
+  private void sample() {
+    if (!sampling) return;
+    LoxCallable[] functions = this.functions;
+    int[] lines = this.lines;
+    int depth = Math.min(this.depth, Math.min(functions.length, lines.length));
+    if (depth < 1) return;
+
+    Sample sample = new Sample(Arrays.copyOf(functions, depth), Arrays.copyOf(lines, depth));
+    sample.lines[depth - 1] = line;
+    samples.merge(sample, 1, Integer::sum);
+    count++;
+  }
+
+  /** A copy of the shadow stack. Functions compare by identity, which is cheap to hash. */
+  private static class Sample {
+    final LoxCallable[] functions;
+    final int[] lines;
+
+    Sample(LoxCallable[] functions, int[] lines) {
+      this.functions = functions;
+      this.lines = lines;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Sample
+          && Arrays.equals(functions, ((Sample) other).functions)
+          && Arrays.equals(lines, ((Sample) other).lines);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Arrays.hashCode(functions) + Arrays.hashCode(lines);
+    }
+
+    String[] labels() {
+      String[] labels = new String[functions.length];
+      for (int i = 0; i < functions.length; i++) {
+        String name = i == 0 || functions[i] == null ? SCRIPT : functions[i].toString();
+        if (name.startsWith("<fn ")) name = name.substring(4, name.length() - 1);
+        labels[i] = lines[i] > 0 ? name + ":" + lines[i] : name;
+      }
+      return labels;
+    }
+  }
+
+  /** Counts per stack in the collapsed format: frames from the root, separated by semicolons. */
+  private Map<String, Integer> collapse() {
+    Map<String, Integer> stacks = new HashMap<>();
+    for (Map.Entry<Sample, Integer> sample : samples.entrySet()) {
+      stacks.merge(String.join(";", sample.getKey().labels()), sample.getValue(), Integer::sum);
+    }
+    return stacks;
+  }
+
+  /** Writes the samples in the collapsed format flame graph tools read. */
+  void writeCollapsed(Path path) throws IOException {
+    try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Integer> stack : collapse().entrySet()) {
+        out.write(stack.getKey() + " " + stack.getValue() + "\n");
+      }
+    }
+  }
+
+  /** Prints the frames most samples were taken in, with how often they were on the stack. */
+  void printTop(PrintStream out, int top) {
+    Map<String, Integer> self = new HashMap<>();
+    Map<String, Integer> total = new HashMap<>();
+    for (Map.Entry<Sample, Integer> sample : samples.entrySet()) {
+      String[] frames = sample.getKey().labels();
+      self.merge(frames[frames.length - 1], sample.getValue(), Integer::sum);
+      for (String frame : new HashSet<>(Arrays.asList(frames))) {
+        total.merge(frame, sample.getValue(), Integer::sum);
+      }
+    }
+
+    List<String> frames = new ArrayList<>(self.keySet());
+    frames.sort((a, b) -> self.get(b) - self.get(a));
+
+    out.printf("%d samples, every %d us%n", count, intervalNanos / 1000);
+    out.printf("%7s %7s  %s%n", "self%", "total%", "frame");
+    for (String frame : frames.subList(0, Math.min(top, frames.size()))) {
+      out.printf("%6.1f%% %6.1f%%  %s%n",
+          percent(self.get(frame)), percent(total.get(frame)), frame);
+    }
+  }
+
+  private double percent(int samples) {
+    return count == 0 ? 0 : 100.0 * samples / count;
+  }
+}
@@ -0,0 +1,34 @@
+package com.github.anivanovic.jezik;
+
+import java.util.List;
+
+/**
+ * A script that has been parsed, resolved and compiled for one engine. Nothing a run does
+ * changes what a program means, so one program can be run by any number of threads at once,
+ * each in its own {@link Context}.
+ *
+ * <p>Self-specializing tree nodes are still written while the tree engine runs them. Those
+ * writes race between threads, but each specialized path checks its assumption before relying
+ * on it, so a stale state only costs a trip through the generic path.
+ */
+public final class Program {
+  final Engine.Kind kind;
+  final List<Stmt> statements;
+  // The global names the program uses, by the numbers its code refers to them with.
+  final String[] globals;
+  // The form the engine runs, when it is not the tree: the VM's script, compiled JVM code, or
+  // the closure engine's converted statements.
+  final BytecodeFunction bytecode;
+  final CompiledCode compiled;
+  final Executor[] closures;
+
+  Program(Engine.Kind kind, List<Stmt> statements, String[] globals, BytecodeFunction bytecode,
+      CompiledCode compiled, Executor[] closures) {
+    this.kind = kind;
+    this.statements = List.copyOf(statements);
+    this.globals = globals;
+    this.bytecode = bytecode;
+    this.compiled = compiled;
+    this.closures = closures;
+  }
+}
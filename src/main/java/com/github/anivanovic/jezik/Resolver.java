@@ -9,12 +9,71 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     FUNCTION,
   }
 
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scope = new Stack<>();
+  /** A local variable and the slot it occupies in its scope's {@link Environment} frame. */
+  private static class Local {
+    final int level;
+    final int slot;
+    boolean defined = false;
+    // Set once an inner function uses the variable; it then has to live in a Cell.
+    boolean captured = false;
+    // The nodes to flag as boxed if the variable turns out to be captured.
+    Stmt declaration;
+    Stmt.Function parameterOf;
+    final List<Expr> uses = new ArrayList<>();
+
+    Local(int level, int slot) {
+      this.level = level;
+      this.slot = slot;
+    }
+
+    void box() {
+      if (declaration instanceof Stmt.Var) {
+        ((Stmt.Var) declaration).boxed = true;
+      } else if (declaration instanceof Stmt.Function) {
+        ((Stmt.Function) declaration).boxed = true;
+      } else if (parameterOf != null) {
+        parameterOf.boxedParams[slot] = true;
+      }
+      for (Expr use : uses) {
+        if (use instanceof Expr.Variable) {
+          ((Expr.Variable) use).boxed = true;
+        } else {
+          ((Expr.Assign) use).boxed = true;
+        }
+      }
+    }
+  }
+
+  /** A function being resolved and the free variables its closures capture. */
+  private static class FunctionScope {
+    final FunctionScope enclosing;
+    // Scope level of the function's parameters; anything declared below belongs to an
+    // enclosing function.
+    final int level;
+    final List<Capture> captures = new ArrayList<>();
+    final Map<Local, Integer> captured = new HashMap<>();
+
+    FunctionScope(FunctionScope enclosing, int level) {
+      this.enclosing = enclosing;
+      this.level = level;
+    }
+  }
+
+  private final Stack<Map<String, Local>> scope = new Stack<>();
   private FunctionType currentFunction = FunctionType.NONE;
+  // The script itself is the outermost function; it never captures anything.
+  private FunctionScope function = new FunctionScope(null, 0);
+  private final ErrorReporter errors;
+  // Numbers the globals of the compile unit.
+  private final Symbols globals;
+
+  Resolver() {
+    this(new ErrorReporter(System.err), new Symbols());
+  }
 
-  public Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
+  Resolver(ErrorReporter errors, Symbols globals) {
+    this.errors = errors;
+    this.globals = globals;
   }
 
   void resolve(List<Stmt> statements) {
@@ -35,12 +94,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     FunctionType tmp = currentFunction;
     currentFunction = fType;
 
+    function = new FunctionScope(function, scope.size());
+    stmt.boxedParams = new boolean[stmt.variables.size()];
     beginScope();
     for (Token parameter : stmt.variables) {
       declare(parameter);
+      define(parameter);
+      scope.peek().get(parameter.lexem).parameterOf = stmt;
     }
     resolve(stmt.body);
-    endScope();
+    stmt.frameSize = endScope();
+    stmt.captures = function.captures.toArray(new Capture[0]);
+    function = function.enclosing;
 
     currentFunction = tmp;
   }
@@ -49,6 +114,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitBinaryExpr(Expr.Binary expr) {
     resolve(expr.left);
     resolve(expr.right);
+    expr.numericLeft = isNumeric(expr.left);
+    expr.numericRight = isNumeric(expr.right);
     return null;
   }
 
@@ -66,6 +133,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitUnaryExpr(Expr.Unary expr) {
     resolve(expr.right);
+    expr.numericRight = isNumeric(expr.right);
     return null;
   }
 
@@ -78,19 +146,39 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitVariableExpr(Expr.Variable expr) {
-    if (!scope.isEmpty() &&
-          scope.peek().get(expr.name.lexem) == false) {
-      Lox.error(expr.name, "Can not use variable in its own initializer.");
+    if (!scope.isEmpty()) {
+      Local local = scope.peek().get(expr.name.lexem);
+      if (local != null && !local.defined) {
+        errors.error(expr.name, "Can not use variable in its own initializer.");
+      }
     }
 
-    resolveLocal(expr, expr.name);
+    Local local = lookup(expr.name);
+    if (local == null) {
+      expr.global = globals.indexOf(expr.name.lexem);
+    } else if (local.level >= function.level) {
+      expr.depth = scope.size() - 1 - local.level;
+      expr.slot = local.slot;
+      local.uses.add(expr);
+    } else {
+      expr.upvalue = capture(function, local);
+    }
     return null;
   }
 
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value);
-    resolveLocal(expr, expr.name);
+    Local local = lookup(expr.name);
+    if (local == null) {
+      expr.global = globals.indexOf(expr.name.lexem);
+    } else if (local.level >= function.level) {
+      expr.depth = scope.size() - 1 - local.level;
+      expr.slot = local.slot;
+      local.uses.add(expr);
+    } else {
+      expr.upvalue = capture(function, local);
+    }
     return null;
   }
 
@@ -117,7 +205,9 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name);
+    if (stmt.slot == -1) stmt.global = globals.indexOf(stmt.name.lexem);
+    declared(stmt.name, stmt);
     if (stmt.initializer != null) {
       resolve(stmt.initializer);
     }
@@ -127,12 +217,27 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
+    // A block declaring nothing gets no scope, so it shares its parent's environment and the
+    // depths resolved inside it don't count it. The interpreter recognizes it by frameSize 0.
+    if (!declaresAnything(stmt.statements)) {
+      resolve(stmt.statements);
+      stmt.frameSize = 0;
+      return null;
+    }
+
     beginScope();
     resolve(stmt.statements);
-    endScope();
+    stmt.frameSize = endScope();
     return null;
   }
 
+  private static boolean declaresAnything(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      if (statement instanceof Stmt.Var || statement instanceof Stmt.Function) return true;
+    }
+    return false;
+  }
+
   @Override
   public Void visitIfStmt(Stmt.If stmt) {
     resolve(stmt.condition);
@@ -151,7 +256,9 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name);
+    if (stmt.slot == -1) stmt.global = globals.indexOf(stmt.name.lexem);
+    declared(stmt.name, stmt);
     define(stmt.name);
     resolveFunction(stmt, FunctionType.FUNCTION);
     return null;
@@ -160,40 +267,105 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
     if (currentFunction == FunctionType.NONE) {
-      Lox.error(stmt.token, "No function to return from");
+      errors.error(stmt.token, "No function to return from");
     }
     if (stmt.value != null)
       resolve(stmt.value);
+    stmt.tailCall = currentFunction == FunctionType.FUNCTION && stmt.value instanceof Expr.Call;
     return null;
   }
 
+  /**
+   * Whether an already resolved expression always evaluates to a number (or fails with a
+   * runtime error), so the interpreter may evaluate it without boxing.
+   */
+  private static boolean isNumeric(Expr expr) {
+    if (expr instanceof Expr.Literal) {
+      return ((Expr.Literal) expr).value instanceof Double;
+    }
+    if (expr instanceof Expr.Grouping) {
+      return isNumeric(((Expr.Grouping) expr).expression);
+    }
+    if (expr instanceof Expr.Unary) {
+      return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+    }
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      switch (binary.operator.type) {
+        case MINUS:
+        case STAR:
+        case SLASH:
+          return true;
+        case PLUS:
+          return binary.numericLeft && binary.numericRight;
+      }
+    }
+    return false;
+  }
+
   private void beginScope() {
     scope.push(new HashMap<>());
   }
 
-  private void endScope() {
-    scope.pop();
+  /** Closes the innermost scope and returns the size of its frame. */
+  private int endScope() {
+    Map<String, Local> locals = scope.pop();
+    for (Local local : locals.values()) {
+      if (local.captured) local.box();
+    }
+    return locals.size();
   }
 
-  private void declare(Token name) {
+  private void declared(Token name, Stmt declaration) {
     if (scope.isEmpty()) return;
-    if (scope.peek().containsKey(name.lexem)) {
-      Lox.error(name, "Variable with same name already in scope.");
+    scope.peek().get(name.lexem).declaration = declaration;
+  }
+
+  /**
+   * Returns the index of {@code local} among the cells captured by {@code function}, adding
+   * it, and threading it through every function in between, on first use.
+   */
+  private int capture(FunctionScope function, Local local) {
+    Integer index = function.captured.get(local);
+    if (index != null) return index;
+
+    Capture capture;
+    if (local.level >= function.enclosing.level) {
+      // A local of the enclosing function, found from the scope the function is declared in.
+      local.captured = true;
+      capture = new Capture(true, function.level - 1 - local.level, local.slot);
+    } else {
+      capture = new Capture(false, 0, capture(function.enclosing, local));
+    }
+    function.captures.add(capture);
+    function.captured.put(local, function.captures.size() - 1);
+    return function.captures.size() - 1;
+  }
+
+  /** Declares a local in the innermost scope and returns its slot, or -1 for a global. */
+  private int declare(Token name) {
+    if (scope.isEmpty()) return -1;
+    Map<String, Local> locals = scope.peek();
+    if (locals.containsKey(name.lexem)) {
+      errors.error(name, "Variable with same name already in scope.");
+      return locals.get(name.lexem).slot;
     }
-    scope.peek().put(name.lexem, false);
+    Local local = new Local(scope.size() - 1, locals.size());
+    locals.put(name.lexem, local);
+    return local.slot;
   }
 
   private void define(Token name) {
     if (scope.isEmpty()) return;
-    scope.peek().put(name.lexem, true);
+    scope.peek().get(name.lexem).defined = true;
   }
 
-  private void resolveLocal(Expr expr, Token name) {
+  /** Finds the innermost local declaring name, or null when it refers to a global. */
+  private Local lookup(Token name) {
     for (int i = scope.size() - 1; i >= 0; i--) {
-      if (scope.get(i).containsKey(name.lexem)) {
-        interpreter.resolve(expr, scope.size() - 1 - i);
-        return;
-      }
+      Local local = scope.get(i).get(name.lexem);
+      if (local != null) return local;
     }
+    return null;
   }
 }
@@ -1,11 +0,0 @@
-package com.github.anivanovic.jezik;
-
-public class Return extends RuntimeException {
-
-    final Object value;
-
-    public Return(Object value) {
-        super(null, null, false, false);
-        this.value = value;
-    }
-}
@@ -1,129 +1,245 @@
 package com.github.anivanovic.jezik;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Turns source text into tokens on demand. Characters are pulled through a small window
+ * buffer, so a script never has to be materialized as one String, and only identifiers,
+ * strings and numbers allocate lexeme text. Identifier and string text is interned so every
+ * occurrence of a name shares one String.
+ */
 class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+  private static final int WINDOW_SIZE = 8192;
+
+  private final Reader reader;
+  private final CharSequence source;
+  final ErrorReporter errors;
+  private int sourcePos = 0;
+
+  // Characters [windowStart, windowEnd) of the input, always covering the current token.
+  private char[] window;
+  private int windowStart = 0;
+  private int windowEnd = 0;
+  private boolean exhausted = false;
+
   private int start = 0;
   private int current = 0;
   private int line = 1;
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    TokenType.AND);
-        keywords.put("class",  TokenType.CLASS);
-        keywords.put("else",   TokenType.ELSE);
-        keywords.put("false",  TokenType.FALSE);
-        keywords.put("for",    TokenType.FOR);
-        keywords.put("fun",    TokenType.FUN);
-        keywords.put("if",     TokenType.IF);
-        keywords.put("nil",    TokenType.NIL);
-        keywords.put("or",     TokenType.OR);
-        keywords.put("print",  TokenType.PRINT);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("super",  TokenType.SUPER);
-        keywords.put("this",   TokenType.THIS);
-        keywords.put("true",   TokenType.TRUE);
-        keywords.put("var",    TokenType.VAR);
-        keywords.put("while",  TokenType.WHILE);
-    }
+  // Open addressing table of interned identifier and string text.
+  private String[] names = new String[64];
+  private int nameCount = 0;
+
+  private static final Map<String, TokenType> keywords;
+  private static final String[] lexemes = new String[TokenType.values().length];
+
+  static {
+    keywords = new HashMap<>();
+    keywords.put("and",    TokenType.AND);
+    keywords.put("class",  TokenType.CLASS);
+    keywords.put("else",   TokenType.ELSE);
+    keywords.put("false",  TokenType.FALSE);
+    keywords.put("for",    TokenType.FOR);
+    keywords.put("fun",    TokenType.FUN);
+    keywords.put("if",     TokenType.IF);
+    keywords.put("nil",    TokenType.NIL);
+    keywords.put("or",     TokenType.OR);
+    keywords.put("print",  TokenType.PRINT);
+    keywords.put("return", TokenType.RETURN);
+    keywords.put("super",  TokenType.SUPER);
+    keywords.put("this",   TokenType.THIS);
+    keywords.put("true",   TokenType.TRUE);
+    keywords.put("var",    TokenType.VAR);
+    keywords.put("while",  TokenType.WHILE);
+
+    lexemes[TokenType.LEFT_PAREN.ordinal()] = "(";
+    lexemes[TokenType.RIGHT_PAREN.ordinal()] = ")";
+    lexemes[TokenType.LEFT_BRACE.ordinal()] = "{";
+    lexemes[TokenType.RIGHT_BRACE.ordinal()] = "}";
+    lexemes[TokenType.COMMA.ordinal()] = ",";
+    lexemes[TokenType.DOT.ordinal()] = ".";
+    lexemes[TokenType.MINUS.ordinal()] = "-";
+    lexemes[TokenType.PLUS.ordinal()] = "+";
+    lexemes[TokenType.SEMICOLON.ordinal()] = ";";
+    lexemes[TokenType.SLASH.ordinal()] = "/";
+    lexemes[TokenType.STAR.ordinal()] = "*";
+    lexemes[TokenType.BANG.ordinal()] = "!";
+    lexemes[TokenType.BANG_EQUAL.ordinal()] = "!=";
+    lexemes[TokenType.EQUAL.ordinal()] = "=";
+    lexemes[TokenType.EQUAL_EQUAL.ordinal()] = "==";
+    lexemes[TokenType.GREATER.ordinal()] = ">";
+    lexemes[TokenType.GREATER_EQUAL.ordinal()] = ">=";
+    lexemes[TokenType.LESS.ordinal()] = "<";
+    lexemes[TokenType.LESS_EQUAL.ordinal()] = "<=";
+    lexemes[TokenType.EOF.ordinal()] = "";
+  }
 
-    Scanner(String source) {
+  Scanner(CharSequence source) {
+    this(source, new ErrorReporter(System.err));
+  }
+
+  Scanner(CharSequence source, ErrorReporter errors) {
     this.source = source;
+    this.reader = null;
+    this.errors = errors;
+    this.window = new char[Math.max(16, Math.min(WINDOW_SIZE, source.length()))];
+  }
+
+  Scanner(Reader reader) {
+    this(reader, new ErrorReporter(System.err));
   }
 
+  Scanner(Reader reader, ErrorReporter errors) {
+    this.source = null;
+    this.reader = reader;
+    this.errors = errors;
+    this.window = new char[WINDOW_SIZE];
+  }
+
+  /** Scans the whole input up front; the parser prefers pulling with {@link #nextToken()}. */
   List<Token> scanTokens() {
-    while (!isAtEnd()) {
+    List<Token> tokens = new ArrayList<>();
+    Token token;
+    do {
+      token = nextToken();
+      tokens.add(token);
+    } while (token.type != TokenType.EOF);
+    return tokens;
+  }
+
+  /** Returns the next token, or an EOF token once the input is used up. */
+  Token nextToken() {
+    while (true) {
       start = current;
-      scanToken();
-    }
+      if (isAtEnd()) {
+        return new Token(TokenType.EOF, "", null, line, start, 0);
+      }
 
-    tokens.add(new Token(TokenType.EOF, "", null, line));
-    return tokens;
+      Token token = scanToken();
+      if (token != null) return token;
+    }
   }
 
   private boolean isAtEnd() {
-    return current >= source.length();
+    return !available(current);
+  }
+
+  /** Makes sure the character at {@code pos} is in the window, reading more input if needed. */
+  private boolean available(int pos) {
+    while (pos >= windowEnd) {
+      if (exhausted || !fill()) return false;
+    }
+    return true;
+  }
+
+  private boolean fill() {
+    // Drop everything before the current token and grow only for tokens longer than the window.
+    int keep = windowEnd - start;
+    if (start > windowStart) {
+      System.arraycopy(window, start - windowStart, window, 0, keep);
+      windowStart = start;
+    }
+    // Keep room for at least a surrogate pair, which a decoding reader hands out whole.
+    if (window.length - keep < 2) {
+      char[] grown = new char[window.length * 2];
+      System.arraycopy(window, 0, grown, 0, keep);
+      window = grown;
+    }
+
+    int read;
+    if (reader != null) {
+      try {
+        read = reader.read(window, keep, window.length - keep);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    } else {
+      read = Math.min(window.length - keep, source.length() - sourcePos);
+      if (source instanceof String) {
+        ((String) source).getChars(sourcePos, sourcePos + read, window, keep);
+      } else {
+        for (int i = 0; i < read; i++) {
+          window[keep + i] = source.charAt(sourcePos + i);
+        }
+      }
+      sourcePos += read;
+      if (read == 0) read = -1;
+    }
+
+    if (read < 0) {
+      exhausted = true;
+      return false;
+    }
+    windowEnd += read;
+    return true;
   }
 
-  private void scanToken() {
+  private Token scanToken() {
     char c = advance();
     switch (c) {
       case '(':
-        addToken(TokenType.LEFT_PAREN);
-        break;
+        return token(TokenType.LEFT_PAREN);
       case ')':
-        addToken(TokenType.RIGHT_PAREN);
-        break;
+        return token(TokenType.RIGHT_PAREN);
       case '{':
-        addToken(TokenType.LEFT_BRACE);
-        break;
+        return token(TokenType.LEFT_BRACE);
       case '}':
-        addToken(TokenType.RIGHT_BRACE);
-        break;
+        return token(TokenType.RIGHT_BRACE);
       case ',':
-        addToken(TokenType.COMMA);
-        break;
+        return token(TokenType.COMMA);
       case '.':
-        addToken(TokenType.DOT);
-        break;
+        return token(TokenType.DOT);
       case '-':
-        addToken(TokenType.MINUS);
-        break;
+        return token(TokenType.MINUS);
       case '+':
-        addToken(TokenType.PLUS);
-        break;
+        return token(TokenType.PLUS);
       case ';':
-        addToken(TokenType.SEMICOLON);
-        break;
+        return token(TokenType.SEMICOLON);
       case '*':
-        addToken(TokenType.STAR);
-        break;
+        return token(TokenType.STAR);
       case '!':
-        addToken(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
-        break;
+        return token(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
       case '=':
-        addToken(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
-        break;
+        return token(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
       case '<':
-        addToken(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
-        break;
+        return token(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
       case '>':
-        addToken(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
-        break;
+        return token(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
       case '/':
         if (match('/')) {
           // A comment goes until the end of the line.
-          while (peek() != '\n' && !isAtEnd()) advance();
-        } else {
-          addToken(TokenType.SLASH);
+          while (peek() != '\n' && !isAtEnd()) {
+            advance();
+            // Nothing of a comment is kept, so let the window slide past it.
+            start = current;
+          }
+          return null;
         }
-        break;
+        return token(TokenType.SLASH);
       case ' ':
       case '\r':
       case '\t':
         // Ignore whitespace.
-        break;
+        return null;
       case '\n':
         line++;
-        break;
+        return null;
       case '"':
-        string();
-        break;
+        return string();
       default:
         if (isDigit(c)) {
-          number();
+          return number();
         } else if (isAlpha(c)) {
-          identifier();
-        } else {
-          Lox.error(line, "Unexpected token");
+          return identifier();
         }
+        errors.error(line, "Unexpected token");
+        return null;
     }
   }
 
@@ -135,34 +251,28 @@ class Scanner {
       return isDigit(c) || isAlpha(c);
   }
 
-  private void identifier() {
-      while (isAlphaNumeric(peek())) advance();
+  private Token identifier() {
+    while (isAlphaNumeric(peek())) advance();
 
-      String literal = source.substring(start, current);
-      TokenType type = keywords.get(literal);
-      if (type == null) {
-          type = TokenType.IDENTIFIER;
-      }
-      addToken(type, literal);
+    String text = intern(start, current);
+    TokenType type = keywords.get(text);
+    if (type == null) {
+      type = TokenType.IDENTIFIER;
+    }
+    return new Token(type, text, null, line, start, current - start);
   }
 
   private char advance() {
-    current++;
-    return source.charAt(current - 1);
+    return window[current++ - windowStart];
   }
 
-  private void addToken(TokenType type) {
-    addToken(type, null);
-  }
-
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+  private Token token(TokenType type) {
+    return new Token(type, lexemes[type.ordinal()], null, line, start, current - start);
   }
 
   private boolean match(char expected) {
     if (isAtEnd()) return false;
-    if (source.charAt(current) != expected) return false;
+    if (window[current - windowStart] != expected) return false;
 
     current++;
     return true;
@@ -170,10 +280,10 @@ class Scanner {
 
   private char peek() {
     if (isAtEnd()) return '\0';
-    return source.charAt(current);
+    return window[current - windowStart];
   }
 
-  private void string() {
+  private Token string() {
     while (peek() != '"' && !isAtEnd()) {
       if (peek() == '\n') line++;
       advance();
@@ -181,23 +291,23 @@ class Scanner {
 
     // Unterminated string.
     if (isAtEnd()) {
-      Lox.error(line, "Unterminated string.");
-      return;
+      errors.error(line, "Unterminated string.");
+      return null;
     }
 
     // The closing ".
     advance();
 
-    // Trim the surrounding quotes.
-    String value = source.substring(start + 1, current - 1);
-    addToken(TokenType.STRING, value);
+    // Trim the surrounding quotes; the lexeme shares the interned value.
+    String value = intern(start + 1, current - 1);
+    return new Token(TokenType.STRING, value, value, line, start, current - start);
   }
 
   private boolean isDigit(char c) {
     return c >= '0' && c <= '9';
   }
 
-  private void number() {
+  private Token number() {
     while (isDigit(peek())) advance();
 
     // Look for a fractional part.
@@ -208,14 +318,62 @@ class Scanner {
       while (isDigit(peek())) advance();
     }
 
-    String literal = source.substring(start, current);
-    addToken(TokenType.NUMBER, Double.parseDouble(literal));
+    String text = new String(window, start - windowStart, current - start);
+    return new Token(TokenType.NUMBER, text, Double.parseDouble(text), line, start, current - start);
   }
 
   private char peekNext() {
-    current++;
-    char c = peek();
-    current--;
-    return c;
+    if (!available(current + 1)) return '\0';
+    return window[current + 1 - windowStart];
+  }
+
+  /** Returns the one String for the window characters [from, to). */
+  private String intern(int from, int to) {
+    int offset = from - windowStart;
+    int length = to - from;
+    // Same polynomial as String.hashCode, so stored names can be compared by their cached hash.
+    int hash = 0;
+    for (int i = offset; i < offset + length; i++) {
+      hash = 31 * hash + window[i];
+    }
+
+    int mask = names.length - 1;
+    int index = (hash ^ (hash >>> 16)) & mask;
+    while (true) {
+      String name = names[index];
+      if (name == null) {
+        name = new String(window, offset, length);
+        names[index] = name;
+        if (++nameCount * 2 > names.length) rehash();
+        return name;
+      }
+      if (name.hashCode() == hash && sameChars(name, offset, length)) {
+        return name;
+      }
+      index = (index + 1) & mask;
+    }
+  }
+
+  private boolean sameChars(String name, int offset, int length) {
+    if (name.length() != length) return false;
+    for (int i = 0; i < length; i++) {
+      if (name.charAt(i) != window[offset + i]) return false;
+    }
+    return true;
+  }
+
+  private void rehash() {
+    String[] old = names;
+    names = new String[old.length * 2];
+    int mask = names.length - 1;
+    for (String name : old) {
+      if (name == null) continue;
+      int hash = name.hashCode();
+      int index = (hash ^ (hash >>> 16)) & mask;
+      while (names[index] != null) {
+        index = (index + 1) & mask;
+      }
+      names[index] = name;
+    }
   }
 }
@@ -0,0 +1,24 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * Execution state of a self-specializing AST node. The interpreter rewrites a node to a
+ * specialized state the first time it runs and falls back to {@link #GENERIC} once the
+ * assumptions of that state stop holding.
+ */
+enum Specialization {
+  UNINITIALIZED,
+  GENERIC,
+  // Binary
+  NUMBER_ADD,
+  STRING_CONCAT,
+  // Unary
+  BOOLEAN_NOT,
+  // Variable
+  LOCAL_SLOT,
+  ENCLOSING_SLOT,
+  BOXED_SLOT,
+  UPVALUE,
+  GLOBAL,
+  // Call
+  MONOMORPHIC_CALL,
+}
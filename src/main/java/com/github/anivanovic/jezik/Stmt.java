@@ -13,6 +13,8 @@ abstract class Stmt {
     R visitFunctionStmt(Function stmt);
     R visitReturnStmt(Return stmt);
   }
+  int line;
+
   static class Expression extends Stmt {
 
     final Expr expression;
@@ -46,6 +48,10 @@ abstract class Stmt {
     final Token name;
     final Expr initializer;
 
+    int slot = -1;
+    boolean boxed;
+    int global = -1;
+
     Var(Token name, Expr initializer) {
       this.name = name;
       this.initializer = initializer;
@@ -61,6 +67,8 @@ abstract class Stmt {
 
     final List<Stmt> statements;
 
+    int frameSize;
+
     Block(List<Stmt> statements) {
       this.statements = statements;
     }
@@ -111,6 +119,14 @@ abstract class Stmt {
     final List<Token> variables;
     final List<Stmt> body;
 
+    int slot = -1;
+    boolean boxed;
+    int global = -1;
+    int frameSize;
+    boolean[] boxedParams;
+    Capture[] captures;
+    Tiering tiering = new Tiering();
+
     Function(Token name, List<Token> variables, List<Stmt> body) {
       this.name = name;
       this.variables = variables;
@@ -128,6 +144,8 @@ abstract class Stmt {
     final Token token;
     final Expr value;
 
+    boolean tailCall;
+
     Return(Token token, Expr value) {
       this.token = token;
       this.value = value;
@@ -0,0 +1,46 @@
+package com.github.anivanovic.jezik;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers global names from zero, in the order they are first seen. Each compile unit numbers
+ * the globals its code uses with its own table, and each {@link Globals} its cells with another,
+ * so nothing is numbered process-wide.
+ */
+final class Symbols {
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    /** Returns the number of a name, numbering it on first sight. */
+    int indexOf(String name) {
+        Integer index = indexes.get(name);
+        if (index == null) {
+            index = names.size();
+            indexes.put(name, index);
+            names.add(name);
+        }
+        return index;
+    }
+
+    /** Returns the number of a name, or -1 if it has not been seen. */
+    int find(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    String nameOf(int index) {
+        return names.get(index);
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    /** The names seen so far, indexed by their numbers. */
+    String[] names() {
+        return names.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.anivanovic.jezik;
+
+import java.util.Arrays;
+
+/**
+ * What a tiered interpreter has learned about one function declaration: how often it ran, which
+ * parameters were only ever passed numbers, and its compiled body. It hangs off the declaration,
+ * not the function value, so every closure of it in every run and context warms up the same
+ * counters and the body is compiled once.
+ */
+final class Tiering {
+
+  /** Calls plus loop iterations after which a tiered interpreter compiles the function. */
+  static final int COMPILE_THRESHOLD = 1000;
+
+  private volatile CompiledCode compiled = null;
+  private volatile boolean uncompilable = false;
+  // Guarded by this, except that loop iterations count without the lock; a lost count only
+  // delays compiling.
+  private int hotness = 0;
+  // Per parameter, whether every profiled call passed a number.
+  private boolean[] numberArgs = null;
+
+  /** Profiles a call and returns the compiled body, compiling it once the function is hot. */
+  CompiledCode tier(Stmt.Function function, Object[] args) {
+    CompiledCode code = compiled;
+    if (code != null || uncompilable) return code;
+
+    synchronized (this) {
+      if (compiled != null || uncompilable) return compiled;
+
+      profile(args);
+      if (++hotness < COMPILE_THRESHOLD) return null;
+
+      code = JvmCompiler.compileBody(function, numberArgs);
+      uncompilable = code == null;
+      compiled = code;
+      return code;
+    }
+  }
+
+  private void profile(Object[] args) {
+    if (numberArgs == null) {
+      numberArgs = new boolean[args.length];
+      Arrays.fill(numberArgs, true);
+    }
+    for (int i = 0; i < numberArgs.length; i++) {
+      if (!(args[i] instanceof Double)) numberArgs[i] = false;
+    }
+  }
+
+  /**
+   * Drops compiled code whose guess that an argument is a number failed. The arguments that
+   * broke it are profiled, so the function is compiled again without that guess once it is
+   * hot again. Code another thread has already replaced is left alone.
+   */
+  synchronized void deoptimize(CompiledCode code, Object[] args) {
+    if (compiled != code) return;
+    compiled = null;
+    hotness = 0;
+    profile(args);
+  }
+
+  /**
+   * Counts an iteration of a loop in the body. There is no on-stack replacement, so a
+   * function made hot by a loop runs compiled from its next call.
+   */
+  void backEdge() {
+    if (hotness < COMPILE_THRESHOLD) hotness++;
+  }
+}
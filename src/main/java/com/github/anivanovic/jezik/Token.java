@@ -5,12 +5,21 @@ public class Token {
     final String lexem;
     final Object literal;
     final int line;
+    // Position of the token in the source, -1 for tokens made up by the runtime.
+    final int offset;
+    final int length;
 
     public Token(TokenType type, String lexem, Object literal, int line) {
+        this(type, lexem, literal, line, -1, 0);
+    }
+
+    Token(TokenType type, String lexem, Object literal, int line, int offset, int length) {
         this.type = type;
         this.lexem = lexem;
         this.literal = literal;
         this.line = line;
+        this.offset = offset;
+        this.length = length;
     }
 
     @Override
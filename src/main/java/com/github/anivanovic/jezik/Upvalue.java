@@ -0,0 +1,16 @@
+package com.github.anivanovic.jezik;
+
+/**
+ * A variable captured by a {@link BytecodeClosure}. While open it points at a slot of the
+ * VM stack, once the slot goes out of scope the value is moved into the upvalue itself.
+ */
+class Upvalue {
+  int slot;
+  Object closed;
+  Upvalue next;
+
+  Upvalue(int slot, Upvalue next) {
+    this.slot = slot;
+    this.next = next;
+  }
+}
@@ -0,0 +1,453 @@
+package com.github.anivanovic.jezik;
+
+import static com.github.anivanovic.jezik.OpCode.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stack based virtual machine executing bytecode produced by the {@link Compiler}.
+ * Intermediate values live on a single operand stack and every Lox call pushes a frame
+ * onto an array of call frames instead of recursing on the Java stack. Both grow on demand
+ * up to the configured call depth, so deep recursion costs heap, not thread stack.
+ */
+class VM {
+
+  /** Call depth used when none is configured. */
+  static final int DEFAULT_MAX_FRAMES = 10_000;
+
+  private static final class CallFrame {
+    BytecodeClosure closure;
+    int ip;
+    int base;
+  }
+
+  private final int maxFrames;
+  // Frames allowed in the current run: a script's own frame comes on top of maxFrames, since
+  // the tree engines do not count the top level as a call.
+  private int frameLimit;
+  private Object[] stack = new Object[256];
+  private int sp = 0;
+  private CallFrame[] frames = new CallFrame[16];
+  private int frameCount = 0;
+  private Upvalue openUpvalues;
+  private final Context context;
+  // Handed to natives and host callables; made on the first call to one.
+  private Interpreter interpreter = null;
+
+  VM() {
+    this(Context.standard(), DEFAULT_MAX_FRAMES);
+  }
+
+  VM(Context context, int maxFrames) {
+    this.context = context;
+    this.maxFrames = maxFrames;
+    this.frameLimit = maxFrames;
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = new CallFrame();
+    }
+  }
+
+  void interpret(BytecodeFunction script, LinkedGlobals globals) {
+    try {
+      BytecodeClosure closure = new BytecodeClosure(script, globals);
+      frameLimit = maxFrames + 1;
+      ensureStack(script.maxStack);
+      stack[sp++] = closure;
+      callClosure(closure, 0, 0);
+      run();
+    } catch (RuntimeError e) {
+      resetStack();
+      context.errors.runtimeError(e);
+    }
+  }
+
+  /** Calls a closure from Java and runs it to completion. Runtime errors are thrown. */
+  Object call(BytecodeClosure closure, List<Object> args) {
+    if (closure.function.arity != args.size()) {
+      throw new RuntimeError(new Token(null, "", null, 0),
+          "Expected " + closure.function.arity + " arguments but got " + args.size() + ".");
+    }
+    frameLimit = maxFrames;
+    ensureStack(1 + args.size());
+    stack[sp++] = closure;
+    for (Object arg : args) {
+      stack[sp++] = arg;
+    }
+    callClosure(closure, args.size(), 0);
+    return run();
+  }
+
+  private void resetStack() {
+    sp = 0;
+    frameCount = 0;
+    openUpvalues = null;
+  }
+
+  /** Runs until the bottom frame returns, and returns its result. */
+  private Object run() {
+    CallFrame frame = frames[frameCount - 1];
+    byte[] code = frame.closure.function.chunk.code;
+    Object[] constants = frame.closure.function.chunk.constants;
+    // Closures keep the globals of the program that made them.
+    LinkedGlobals globals = frame.closure.globals;
+    int ip = frame.ip;
+    int base = frame.base;
+    Object[] stack = this.stack;
+
+    for (;;) {
+      switch (code[ip++]) {
+        case OP_CONST: {
+          stack[sp++] = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          break;
+        }
+        case OP_NIL: stack[sp++] = null; break;
+        case OP_TRUE: stack[sp++] = true; break;
+        case OP_FALSE: stack[sp++] = false; break;
+        case OP_POP: sp--; break;
+        case OP_GET_LOCAL: {
+          stack[sp++] = stack[base + (code[ip++] & 0xff)];
+          break;
+        }
+        case OP_SET_LOCAL: {
+          stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+          break;
+        }
+        case OP_GET_GLOBAL: {
+          int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          Object val = globals.lookup(index);
+          if (val == Globals.UNDEFINED) {
+            throw error(ip, frame, "Undefined variable '" + globals.nameOf(index) + "'.");
+          }
+          stack[sp++] = val;
+          break;
+        }
+        case OP_DEFINE_GLOBAL: {
+          int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          if (!globals.defineCell(index, stack[--sp])) {
+            throw error(ip, frame, "Variable '" + globals.nameOf(index) + "' already declared.");
+          }
+          break;
+        }
+        case OP_SET_GLOBAL: {
+          int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          if (!globals.assignCell(index, stack[sp - 1])) {
+            throw error(ip, frame, "Undefined variable '" + globals.nameOf(index) + "'.");
+          }
+          break;
+        }
+        case OP_GET_UPVALUE: {
+          Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+          stack[sp++] = upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed;
+          break;
+        }
+        case OP_SET_UPVALUE: {
+          Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+          if (upvalue.slot >= 0) {
+            stack[upvalue.slot] = stack[sp - 1];
+          } else {
+            upvalue.closed = stack[sp - 1];
+          }
+          break;
+        }
+        case OP_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          checkNumbers(ip, frame, a, b);
+          stack[sp - 1] = a.equals(b);
+          break;
+        }
+        case OP_GREATER: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          checkNumbers(ip, frame, a, b);
+          stack[sp - 1] = (double) a > (double) b;
+          break;
+        }
+        case OP_GREATER_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          checkNumbers(ip, frame, a, b);
+          stack[sp - 1] = (double) a >= (double) b;
+          break;
+        }
+        case OP_LESS: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          checkNumbers(ip, frame, a, b);
+          stack[sp - 1] = (double) a < (double) b;
+          break;
+        }
+        case OP_LESS_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          checkNumbers(ip, frame, a, b);
+          stack[sp - 1] = (double) a <= (double) b;
+          break;
+        }
+        case OP_ADD: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double) a + (double) b;
+          } else if (a instanceof String && b instanceof String) {
+            stack[sp - 1] = a + (String) b;
+          } else {
+            throw error(ip, frame, "Operands must be numbers or strings.");
+          }
+          break;
+        }
+        case OP_SUBTRACT: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          checkNumbers(ip, frame, a, b);
+          stack[sp - 1] = (double) a - (double) b;
+          break;
+        }
+        case OP_MULTIPLY: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          checkNumbers(ip, frame, a, b);
+          stack[sp - 1] = (double) a * (double) b;
+          break;
+        }
+        case OP_DIVIDE: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          checkNumbers(ip, frame, a, b);
+          stack[sp - 1] = (double) a / (double) b;
+          break;
+        }
+        case OP_NOT: {
+          stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+          break;
+        }
+        case OP_NEGATE: {
+          Object val = stack[sp - 1];
+          if (!(val instanceof Double)) {
+            throw error(ip, frame, "Operand must be a number.");
+          }
+          stack[sp - 1] = -(double) val;
+          break;
+        }
+        case OP_PRINT: {
+          context.out.println(Interpreter.stringify(stack[--sp]));
+          break;
+        }
+        case OP_JUMP: {
+          int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2 + offset;
+          break;
+        }
+        case OP_JUMP_IF_FALSE: {
+          int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          if (!Interpreter.isTruthy(stack[sp - 1])) ip += offset;
+          break;
+        }
+        case OP_LOOP: {
+          LoxInterruptedException.check();
+          int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2 - offset;
+          break;
+        }
+        case OP_CALL: {
+          LoxInterruptedException.check();
+          int argc = code[ip++] & 0xff;
+          frame.ip = ip;
+          Object callee = stack[sp - 1 - argc];
+          if (callee instanceof BytecodeClosure) {
+            BytecodeClosure closure = (BytecodeClosure) callee;
+            if (closure.function.arity != argc) {
+              throw error(ip, frame,
+                  "Expected " + closure.function.arity + " arguments but got " + argc + ".");
+            }
+            if (frameCount == frameLimit) {
+              throw error(ip, frame, "Stack overflow.");
+            }
+            callClosure(closure, argc, sp - 1 - argc);
+            stack = this.stack;
+          } else if (callee instanceof LoxCallable) {
+            callNative(ip, frame, (LoxCallable) callee, argc);
+          } else {
+            throw error(ip, frame, "Can only call functions and classes.");
+          }
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          globals = frame.closure.globals;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case OP_TAIL_CALL: {
+          LoxInterruptedException.check();
+          int argc = code[ip++] & 0xff;
+          frame.ip = ip;
+          Object callee = stack[sp - 1 - argc];
+          if (callee instanceof BytecodeClosure) {
+            BytecodeClosure closure = (BytecodeClosure) callee;
+            if (closure.function.arity != argc) {
+              throw error(ip, frame,
+                  "Expected " + closure.function.arity + " arguments but got " + argc + ".");
+            }
+            // Reuse the current frame: slide the callee and its arguments down over it.
+            closeUpvalues(base);
+            System.arraycopy(stack, sp - 1 - argc, stack, base, argc + 1);
+            sp = base + argc + 1;
+            frame.closure = closure;
+            frame.ip = 0;
+            ensureStack(base + closure.function.maxStack);
+            stack = this.stack;
+          } else if (callee instanceof LoxCallable) {
+            callNative(ip, frame, (LoxCallable) callee, argc);
+          } else {
+            throw error(ip, frame, "Can only call functions and classes.");
+          }
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          globals = frame.closure.globals;
+          ip = frame.ip;
+          break;
+        }
+        case OP_CLOSURE: {
+          BytecodeFunction function =
+              (BytecodeFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          BytecodeClosure closure = new BytecodeClosure(function, globals);
+          for (int i = 0; i < closure.upvalues.length; i++) {
+            boolean isLocal = code[ip++] == 1;
+            int index = code[ip++] & 0xff;
+            closure.upvalues[i] = isLocal
+                ? captureUpvalue(base + index)
+                : frame.closure.upvalues[index];
+          }
+          stack[sp++] = closure;
+          break;
+        }
+        case OP_CLOSE_UPVALUE: {
+          closeUpvalues(sp - 1);
+          sp--;
+          break;
+        }
+        case OP_RETURN: {
+          Object result = stack[--sp];
+          closeUpvalues(base);
+          frameCount--;
+          if (frameCount == 0) {
+            sp = 0;
+            return result;
+          }
+
+          sp = base;
+          stack[sp++] = result;
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          globals = frame.closure.globals;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+      }
+    }
+  }
+
+  private void callClosure(BytecodeClosure closure, int argc, int base) {
+    if (Metrics.ENABLED) Metrics.calls.increment();
+    if (frameCount == frames.length) {
+      int length = frames.length;
+      frames = Arrays.copyOf(frames, Math.min(length * 2, frameLimit));
+      for (int i = length; i < frames.length; i++) {
+        frames[i] = new CallFrame();
+      }
+    }
+    ensureStack(base + closure.function.maxStack);
+
+    CallFrame frame = frames[frameCount++];
+    frame.closure = closure;
+    frame.ip = 0;
+    frame.base = base;
+  }
+
+  /** Grows the operand stack so that slots below {@code size} exist. */
+  private void ensureStack(int size) {
+    if (size > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+    }
+  }
+
+  private void callNative(int ip, CallFrame frame, LoxCallable callable, int argc) {
+    if (callable.arity() != argc) {
+      throw error(ip, frame, "Expected " + callable.arity() + " arguments but got " + argc + ".");
+    }
+    if (Metrics.ENABLED) Metrics.calls.increment();
+    if (interpreter == null) interpreter = new Interpreter(context, maxFrames, false, null);
+
+    // The arguments are read straight off the operand stack.
+    int first = sp - argc;
+    Object result;
+    switch (argc) {
+      case 0:
+        result = callable.call0(interpreter);
+        break;
+      case 1:
+        result = callable.call1(interpreter, stack[first]);
+        break;
+      case 2:
+        result = callable.call2(interpreter, stack[first], stack[first + 1]);
+        break;
+      case 3:
+        result = callable.call3(interpreter, stack[first], stack[first + 1], stack[first + 2]);
+        break;
+      default:
+        result = callable.call(interpreter, Arrays.copyOfRange(stack, first, sp));
+        break;
+    }
+    sp -= argc + 1;
+    stack[sp++] = result;
+  }
+
+  private Upvalue captureUpvalue(int slot) {
+    Upvalue prev = null;
+    Upvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      prev = upvalue;
+      upvalue = upvalue.next;
+    }
+    if (upvalue != null && upvalue.slot == slot) {
+      return upvalue;
+    }
+
+    Upvalue created = new Upvalue(slot, upvalue);
+    if (prev == null) {
+      openUpvalues = created;
+    } else {
+      prev.next = created;
+    }
+    return created;
+  }
+
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      Upvalue upvalue = openUpvalues;
+      upvalue.closed = stack[upvalue.slot];
+      upvalue.slot = -1;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  private void checkNumbers(int ip, CallFrame frame, Object a, Object b) {
+    if (a instanceof Double && b instanceof Double) return;
+    throw error(ip, frame, "Operands must be a numbers.");
+  }
+
+  private RuntimeError error(int ip, CallFrame frame, String message) {
+    int line = frame.closure.function.chunk.lines[ip - 1];
+    return new RuntimeError(new Token(null, "", null, line), message);
+  }
+}
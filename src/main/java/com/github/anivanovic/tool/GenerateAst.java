@@ -14,30 +14,38 @@ public class GenerateAst {
       System.exit(64);
     }
     String outDir = args[0];
-    defineAst(outDir, "Expr", List.of(
-            "Binary     : Expr left, Token operator, Expr right",
+    defineAst(outDir, "Expr", List.of(), List.of(
+            "Binary     : Expr left, Token operator, Expr right"
+                + " | boolean numericLeft, boolean numericRight, Specialization state = Specialization.UNINITIALIZED",
             "Grouping   : Expr expression",
             "Literal    : Object value",
-            "Unary      : Token operator, Expr right",
+            "Unary      : Token operator, Expr right"
+                + " | boolean numericRight, Specialization state = Specialization.UNINITIALIZED",
             "Logical    : Expr left, Token operator, Expr right",
-            "Variable   : Token name",
-            "Assign     : Token name, Expr value",
+            "Variable   : Token name | int depth = -1, int slot, int upvalue = -1, boolean boxed, int global = -1,"
+                + " Specialization state = Specialization.UNINITIALIZED",
+            "Assign     : Token name, Expr value | int depth = -1, int slot, int upvalue = -1, boolean boxed, int global = -1",
             "Call       : Expr callee, Token paren, List<Expr> args"
+                + " | Specialization state = Specialization.UNINITIALIZED, Stmt.Function target"
     ));
 
-    defineAst(outDir, "Stmt", List.of(
+    // Statements know the line they start on, so the profiler can follow execution line by line.
+    defineAst(outDir, "Stmt", List.of("int line"), List.of(
             "Expression : Expr expression",
             "Print      : Expr expression",
-            "Var        : Token name, Expr initializer",
-            "Block      : List<Stmt> statements",
+            "Var        : Token name, Expr initializer | int slot = -1, boolean boxed, int global = -1",
+            "Block      : List<Stmt> statements | int frameSize",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
             "While      : Expr condition, Stmt body",
-            "Function   : Token name, List<Token> variables, List<Stmt> body",
-            "Return     : Token token, Expr value"
+            "Function   : Token name, List<Token> variables, List<Stmt> body"
+                + " | int slot = -1, boolean boxed, int global = -1, int frameSize, boolean[] boxedParams, Capture[] captures,"
+                + " Tiering tiering = new Tiering()",
+            "Return     : Token token, Expr value | boolean tailCall"
     ));
   }
 
-  private static void defineAst(String outDir, String baseName, List<String> types) throws IOException {
+  private static void defineAst(
+      String outDir, String baseName, List<String> baseFields, List<String> types) throws IOException {
     String path = Paths.get(outDir, baseName+".java").toString();
     PrintWriter writer = new PrintWriter(path, Charset.forName("UTF-8"));
     writer.println("package com.github.anivanovic.jezik;");
@@ -48,11 +56,18 @@ public class GenerateAst {
 
     defineVisitor(writer, baseName, types);
 
+    // Mutable fields every node has, filled in when it is built
+    for (String field : baseFields) {
+      writer.println("  " + field + ";");
+    }
+    if (!baseFields.isEmpty()) writer.println();
+
     // Create AST classes
     for (String def : types) {
       String className = def.split(":")[0].trim();
-      String fields = def.split(":")[1].trim();
-      defineType(writer, baseName, className, fields);
+      String[] fields = def.split(":")[1].split("\\|");
+      String resolved = fields.length > 1 ? fields[1].trim() : null;
+      defineType(writer, baseName, className, fields[0].trim(), resolved);
     }
     writer.println();
     writer.println("  abstract <R> R accept(Visitor<R> visitor);");
@@ -78,7 +93,8 @@ public class GenerateAst {
     writer.println("  }");
   }
 
-  private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+  private static void defineType(
+      PrintWriter writer, String baseName, String className, String fieldList, String resolvedList) {
     writer.println("  static class " + className + " extends " + baseName + " {");
     writer.println();
 
@@ -89,6 +105,14 @@ public class GenerateAst {
     }
     writer.println();
 
+    // Mutable fields filled in by the resolver and the interpreter
+    if (resolvedList != null) {
+      for (String field : resolvedList.split(", ")) {
+        writer.println("    " + field + ";");
+      }
+      writer.println();
+    }
+
     // Constructor
     writer.println("    " + className + "(" + fieldList + ") {");
     for (String field : fields) {
@@ -0,0 +1,189 @@
+package com.github.anivanovic.jezik;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.util.Set;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import org.junit.Test;
+
+public class LoxScriptEngineTest {
+
+  public interface Adder {
+    int add(int a, int b);
+  }
+
+  @Test
+  public void compiledScriptRunsAgainInTheBindingsItFilled() throws ScriptException {
+    for (Engine.Kind kind : Engine.Kind.values()) {
+      ScriptEngine engine = new LoxScriptEngine(new Engine(kind));
+      CompiledScript script =
+          ((Compilable) engine).compile("var y = x * 2; fun twice(n) { return 2 * n; }");
+
+      engine.put("x", 3);
+      script.eval();
+      engine.put("x", 5);
+      script.eval();
+
+      assertEquals(kind.name(), 10.0, engine.get("y"));
+    }
+  }
+
+  @Test
+  public void compiledScriptRunsAgainInOtherBindings() throws ScriptException {
+    ScriptEngine engine = new LoxScriptEngine(new Engine(Engine.Kind.TREE));
+    CompiledScript script = ((Compilable) engine).compile("var y = x + 1;");
+
+    Bindings first = engine.createBindings();
+    first.put("x", 1);
+    script.eval(first);
+    Bindings second = new SimpleBindings();
+    second.put("x", 2);
+    script.eval(second);
+
+    assertEquals(2.0, first.get("y"));
+    assertEquals(3.0, second.get("y"));
+  }
+
+  @Test
+  public void bindingsRoundTrip() throws ScriptException {
+    ScriptEngine engine = new LoxScriptEngine(new Engine(Engine.Kind.TREE));
+    Bindings bindings = engine.createBindings();
+    bindings.put("n", 7);
+    bindings.put("s", "text");
+    bindings.put("flag", true);
+
+    engine.eval("n = n + 1; s = s + \"!\"; var added = flag;", bindings);
+
+    assertEquals(8.0, bindings.get("n"));
+    assertEquals("text!", bindings.get("s"));
+    assertEquals(true, bindings.get("added"));
+    // The natives are there for scripts, but are not bindings.
+    assertEquals(Set.of("n", "s", "flag", "added"), bindings.keySet());
+    assertFalse(bindings.containsKey("clock"));
+
+    assertEquals(true, bindings.remove("added"));
+    assertFalse(bindings.containsKey("added"));
+    assertNull(bindings.get("added"));
+  }
+
+  @Test
+  public void copiesOtherBindingsInAndBack() throws ScriptException {
+    ScriptEngine engine = new LoxScriptEngine(new Engine(Engine.Kind.TREE));
+    Bindings bindings = new SimpleBindings();
+    bindings.put("n", 7);
+    StringWriter out = new StringWriter();
+    engine.getContext().setWriter(out);
+
+    engine.eval("print n; n = n * 2; var m = n + 1;", bindings);
+
+    assertEquals("7" + System.lineSeparator(), out.toString());
+    assertEquals(14.0, bindings.get("n"));
+    assertEquals(15.0, bindings.get("m"));
+  }
+
+  @Test
+  public void factoryHasNoParameterForNull() {
+    assertNull(new LoxScriptEngineFactory().getParameter(null));
+    assertEquals("jlox", new LoxScriptEngineFactory().getParameter(ScriptEngine.ENGINE));
+  }
+
+  @Test
+  public void reportsRuntimeErrorsAsScriptExceptions() {
+    ScriptEngine engine = new LoxScriptEngine(new Engine(Engine.Kind.TREE));
+    engine.getContext().setWriter(new StringWriter());
+    try {
+      engine.eval("print 1;\nprint missing;");
+      fail("Expected a ScriptException.");
+    } catch (ScriptException e) {
+      assertEquals(2, e.getLineNumber());
+      assertTrue(e.getMessage(), e.getMessage().contains("Undefined variable 'missing'."));
+    }
+  }
+
+  @Test
+  public void invokeFunctionReturnsTheResult() throws Exception {
+    for (Engine.Kind kind : Engine.Kind.values()) {
+      ScriptEngine engine = new LoxScriptEngine(new Engine(kind));
+      engine.eval("fun add(a, b) { return a + b; }");
+
+      assertEquals(kind.name(), 5.0, ((Invocable) engine).invokeFunction("add", 2, 3));
+    }
+  }
+
+  @Test
+  public void invokeFunctionReportsTheWrongNumberOfArguments() throws Exception {
+    for (Engine.Kind kind : Engine.Kind.values()) {
+      ScriptEngine engine = new LoxScriptEngine(new Engine(kind));
+      engine.eval("fun add(a, b) { return a + b; }");
+      try {
+        ((Invocable) engine).invokeFunction("add", 1);
+        fail("Expected a ScriptException on " + kind.name() + ".");
+      } catch (ScriptException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("Expected 2 arguments but got 1."));
+      }
+    }
+  }
+
+  @Test
+  public void invokeFunctionThrowsForMissingFunctions() throws ScriptException {
+    ScriptEngine engine = new LoxScriptEngine(new Engine(Engine.Kind.TREE));
+    engine.eval("var notAFunction = 1;");
+    for (String name : new String[] {"missing", "notAFunction"}) {
+      try {
+        ((Invocable) engine).invokeFunction(name);
+        fail("Expected a NoSuchMethodException for " + name + ".");
+      } catch (NoSuchMethodException e) {
+        assertEquals(name, e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void interfaceCallsTheLoxFunctions() throws ScriptException {
+    ScriptEngine engine = new LoxScriptEngine(new Engine(Engine.Kind.TREE));
+    assertNull(((Invocable) engine).getInterface(Adder.class));
+
+    engine.eval("fun add(a, b) { return a + b; }");
+    Adder adder = ((Invocable) engine).getInterface(Adder.class);
+
+    assertEquals(5, adder.add(2, 3));
+    engine.eval("fun add(a, b) { return a * b; }");
+    assertEquals(6, adder.add(2, 3));
+  }
+
+  @Test
+  public void scriptsCallJavaCallablesFromTheBindings() throws Exception {
+    LoxCallable twice = new LoxCallable() {
+      @Override
+      public int arity() {
+        return 1;
+      }
+
+      @Override
+      public Object call(Interpreter interpreter, Object[] args) {
+        assertNotNull(interpreter);
+        return 2 * (double) args[0];
+      }
+    };
+    for (Engine.Kind kind : Engine.Kind.values()) {
+      ScriptEngine engine = new LoxScriptEngine(new Engine(kind));
+      engine.put("twice", twice);
+      engine.eval("var y = twice(21); fun quadruple(n) { return twice(twice(n)); }");
+
+      assertEquals(kind.name(), 42.0, engine.get("y"));
+      assertEquals(kind.name(), 12.0, ((Invocable) engine).invokeFunction("quadruple", 3));
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package com.github.anivanovic.jezik;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.Test;
+
+public class ProfilerTest {
+
+  // Only the assignment, the call and the return used to move the line; the print did not.
+  private static final String LOOP = String.join("\n",
+      "fun f(n) { return n; }",
+      "var i = 0;",
+      "while (i < 200000) {",
+      "  print i;",
+      "  f(i);",
+      "  i = i + 1;",
+      "}");
+
+  @Test
+  public void chargesSamplesToTheStatementRunning() throws Exception {
+    List<String> stacks = profile(LOOP);
+
+    assertTrue(stacks.toString(), stacks.stream().anyMatch(stack -> stack.startsWith("<script>:4 ")));
+    assertTrue(stacks.toString(), stacks.stream()
+        .filter(stack -> stack.contains(";f"))
+        .allMatch(stack -> stack.startsWith("<script>:5;")));
+  }
+
+  /** Runs the source on the tree engine and returns the collapsed stacks it was sampled in. */
+  private static List<String> profile(String source) throws Exception {
+    Profiler profiler = new Profiler(50_000);
+    Engine engine = new Engine(Engine.Kind.TREE, VM.DEFAULT_MAX_FRAMES, false, profiler);
+    ErrorReporter errors = new ErrorReporter(System.err);
+    Program program = engine.compile(source, errors);
+    profiler.start();
+    try {
+      engine.run(program, new Context(new PrintStream(OutputStream.nullOutputStream()), errors));
+    } finally {
+      profiler.stop();
+    }
+
+    Path collapsed = Files.createTempFile("profile", ".txt");
+    try {
+      profiler.writeCollapsed(collapsed);
+      return Files.readAllLines(collapsed);
+    } finally {
+      Files.delete(collapsed);
+    }
+  }
+}